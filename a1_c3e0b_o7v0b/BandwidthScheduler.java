@@ -0,0 +1,143 @@
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//
+// Shares bandwidth between concurrent transfers with token buckets: one for
+// all traffic and one per host that has a limit of its own. A transfer takes
+// tokens for every quantum it moves, and when a bucket runs dry it sleeps off
+// the debt. Transfers reserve small quanta in turn, so those sharing a bucket
+// get about equal shares of it.
+// Limits are bytes per second, 0 for none, and may change at any time;
+// transfers pick up a new limit within one quantum or chunk. While nothing
+// limits a transfer it runs at full speed on TransferEngine's zero-copy path.
+//
+
+class BandwidthScheduler {
+    // A quantum is this long at the limit, so rate changes and sharing react quickly
+    static final long QUANTUM_MILLIS = 20;
+    static final long MIN_QUANTUM = 1024;
+
+    private final TokenBucket global = new TokenBucket();
+    private final ConcurrentMap<String, TokenBucket> hosts = new ConcurrentHashMap<String, TokenBucket>();
+
+    void setGlobalLimit(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    long getGlobalLimit() {
+        return global.getRate();
+    }
+
+    // Limit the traffic to one host, across all of its sessions
+    void setHostLimit(String host, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            hosts.remove(host);
+            return;
+        }
+        TokenBucket bucket = hosts.get(host);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket();
+            bucket = hosts.putIfAbsent(host, created);
+            if (bucket == null) bucket = created;
+        }
+        bucket.setRate(bytesPerSecond);
+    }
+
+    // return the per-host limits, sorted by host
+    Map<String, Long> getHostLimits() {
+        Map<String, Long> limits = new TreeMap<String, Long>();
+        for (Map.Entry<String, TokenBucket> entry : hosts.entrySet()) {
+            limits.put(entry.getKey(), entry.getValue().getRate());
+        }
+        return limits;
+    }
+
+    // return the throttle for transfers to or from host
+    Throttle throttle(String host) {
+        return new Throttle(host);
+    }
+
+    // The limits that apply to one host's transfers
+    class Throttle {
+        private final String host;
+
+        private Throttle(String host) {
+            this.host = host;
+        }
+
+        // true if any limit applies right now
+        boolean isLimited() {
+            return global.getRate() > 0 || hosts.containsKey(host);
+        }
+
+        // return how many of wanted bytes to move before the next acquire()
+        long quantum(long wanted) {
+            long rate = global.getRate();
+            TokenBucket bucket = hosts.get(host);
+            if (bucket != null && (rate == 0 || bucket.getRate() < rate)) {
+                rate = bucket.getRate();
+            }
+            if (rate == 0) return wanted;
+            return Math.min(wanted, Math.max(MIN_QUANTUM, rate * QUANTUM_MILLIS / 1000));
+        }
+
+        // Pay for bytes that have been moved, sleeping while a bucket is in debt
+        void acquire(long bytes) throws InterruptedIOException {
+            long wait = global.take(bytes);
+            TokenBucket bucket = hosts.get(host);
+            if (bucket != null) {
+                wait = Math.max(wait, bucket.take(bytes));
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    // Tokens accrue at rate bytes per second, up to one quantum's worth.
+    // Taking more than there are leaves the bucket in debt, and the taker
+    // waits until the debt would have been paid off.
+    private static class TokenBucket {
+        private volatile long rate = 0;
+        private double tokens = 0;
+        private long last = System.nanoTime();
+
+        long getRate() {
+            return rate;
+        }
+
+        synchronized void setRate(long bytesPerSecond) {
+            refill();
+            rate = Math.max(0, bytesPerSecond);
+            tokens = Math.min(tokens, burst());
+        }
+
+        // return the nanoseconds to wait before the bytes are paid for
+        synchronized long take(long bytes) {
+            if (rate == 0) return 0;
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(burst(), tokens + (now - last) * (double) rate / 1e9);
+            }
+            last = now;
+        }
+
+        private double burst() {
+            return Math.max(MIN_QUANTUM, rate * QUANTUM_MILLIS / 1000.0);
+        }
+    }
+}
@@ -1,19 +1,48 @@
-
 import java.io.*;
-import java.net.Socket;
+import java.nio.file.FileSystemException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 //
-// This is an implementation of a simplified version of a command 
+// This is an implementation of a simplified version of a command
 // line ftp client. The program always takes two arguments
 //
+// The REPL is a thin shell over FtpSession: every command maps onto a session
+// call, and the session echoes the conversation with the server.
+// With -b before the arguments, stdin is read as a script instead, see runBatch().
+//
 
 
 public class CSftp {
     static final int MAX_LEN = 255;
     static final int ARG_CNT = 2;
 
-    // The socket used for control connection
-    private static Socket socket = null;
+    // The session driven by the prompt
+    private static FtpSession session = null;
+
+    // Where the session goes and the credentials given so far,
+    // kept so that commands like mget can open sessions of their own
+    private static String serverHost = null;
+    private static int serverPort = 21;
+    private static String user = null;
+    private static String password = null;
+
+    // Logged-in sessions kept between mget/get -s commands
+    private static final SessionPool pool = new SessionPool();
+    // Directory listings shared by the prompt's session and the pooled ones
+    private static final ListingCache listings = new ListingCache();
+    // Latencies and transfer figures of every session, shown by 'stats'
+    private static final Metrics metrics = new Metrics();
+    // Bandwidth limits shared by every session, set with 'limit'
+    private static final BandwidthScheduler bandwidth = new BandwidthScheduler();
+    // Whether downloads ask for MODE Z, set with 'compress'
+    private static boolean compression = false;
+    // Event loops for 'mget -e', started by the first such command
+    private static SelectorEngine engine = null;
 
     public static void main(String[] args) {
         byte cmdString[] = new byte[MAX_LEN];
@@ -22,121 +51,249 @@ public class CSftp {
         // If the arguments are invalid or there aren't enough of them
         // then exit.
 
+        boolean batch = args.length > 0 && args[0].equals("-b");
+        if (batch) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (args.length < 1 || args.length > ARG_CNT) {
-            System.out.print("Usage: cmd ServerAddress ServerPort\n");
+            System.out.print("Usage: cmd [-b] ServerAddress ServerPort\n");
             return;
         }
-        String host = args[0];
-        int port = 21;
+        serverHost = args[0];
         if (args.length == ARG_CNT) {
-            port = Integer.valueOf(args[1]);
+            serverPort = Integer.valueOf(args[1]);
         }
         // Connect to the FTP server
         try {
-            socket = new Socket(host, port);
-            receive(socket);
+            pool.setMetrics(metrics);
+            pool.setBandwidthScheduler(bandwidth);
+            session = FtpSession.open(serverHost, serverPort, System.out, metrics);
+            session.setListingCache(listings);
+            session.setBandwidthScheduler(bandwidth);
         } catch (IOException e) {
 //            e.printStackTrace();
-            System.out.println("0xFFFC Control connection to " + host + " on port " + port + " failed to open.");
+            System.out.println("0xFFFC Control connection to " + serverHost + " on port " + serverPort + " failed to open.");
             System.exit(-1);
         }
         try {
-            for (int len = 1; len > 0; ) {
-                System.out.print("csftp> ");
-                len = System.in.read(cmdString); // len is The number of bytes actually read
-                if (len <= 0)
-                    break;
-                // Start processing the command here.
-                String command = new String(cmdString, 0, len, "UTF-8");
-                if (command.startsWith("#") || command.startsWith("\n")) {
-                    /** Skip lines starting with # and empty lines **/
-                } else if (command.startsWith("user")) {
-                    handleUser(command);
-                } else if (command.startsWith("pw")) {
-                    handlePassword(command);
-                } else if (command.startsWith("quit")) {
-                    handleQuit();
-                } else if (command.startsWith("get")) {
-                    handleGet(command);
-                } else if (command.startsWith("features")) {
-                    handleFeatures(command);
-                } else if (command.startsWith("cd")) {
-                    handleChangeDirectory(command);
-                } else if (command.startsWith("dir")) {
-                    handleDir(command);
-                } else {
-                    System.out.println("0x001 Invalid command.");
+            if (batch) {
+                runBatch(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+            } else {
+                for (int len = 1; len > 0; ) {
+                    System.out.print("csftp> ");
+                    len = System.in.read(cmdString); // len is The number of bytes actually read
+                    if (len <= 0)
+                        break;
+                    // Start processing the command here.
+                    dispatch(new String(cmdString, 0, len, "UTF-8"));
                 }
             }
-            socket.close();
+            session.close();
         } catch (IOException exception) {
             System.err.println("0xFFFE Input error while reading commands, terminating.");
             System.exit(0);
         }
     }
 
-    // Handler for the 'dir' command
-    private static void handleDir(String command) {
-        if (command.trim().equals("dir")) {
-            send("PASV");
-            String line = receive(socket);
-            if (line != null && line.startsWith("227")) {
-                getListOfFiles(line);
-            }
+    // Run one command line
+    private static void dispatch(String command) {
+        if (command.startsWith("#") || command.startsWith("\n")) {
+            /** Skip lines starting with # and empty lines **/
+        } else if (command.startsWith("user")) {
+            handleUser(command);
+        } else if (command.startsWith("pw")) {
+            handlePassword(command);
+        } else if (command.startsWith("quit")) {
+            handleQuit();
+        } else if (command.startsWith("mget")) {
+            handleMget(command);
+        } else if (command.startsWith("get")) {
+            handleGet(command);
+        } else if (command.startsWith("mput")) {
+            handleMput(command);
+        } else if (command.startsWith("put")) {
+            handlePut(command);
+        } else if (command.startsWith("features")) {
+            handleFeatures(command);
+        } else if (command.startsWith("cd")) {
+            handleChangeDirectory(command);
+        } else if (command.startsWith("mirror")) {
+            handleMirror(command);
+        } else if (command.startsWith("dir")) {
+            handleDir(command);
+        } else if (command.startsWith("stats")) {
+            handleStats(command);
+        } else if (command.startsWith("limit")) {
+            handleLimit(command);
+        } else if (command.startsWith("compress")) {
+            handleCompress(command);
         } else {
             System.out.println("0x001 Invalid command.");
         }
     }
 
-    // Format of line: "227 Entering Passive Mode (a,b,c,d,e,f)"
-    // host: a.b.c.d
-    // port: e * 256 + f
-    private static void getListOfFiles(String line) {
-        Socket dataSocket;
-        String host = extractHost(line);
-        int port = extractPort(line);
+    // Batch mode (-b): read a whole script from in, one command per line, with
+    // no prompt and no limit on line length. Runs of commands that only need a
+    // control connection round trip (user, pw, cd, features) are pipelined:
+    // sent together and their replies matched up in order. Any other command
+    // waits for the run before it to finish and then executes as usual.
+    private static void runBatch(BufferedReader in) throws IOException {
+        List<String> pending = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#") || line.trim().isEmpty()) continue;
+            String control = controlCommand(line);
+            if (control != null) {
+                pending.add(control);
+            } else {
+                flushPipeline(pending);
+                dispatch(line + "\n");
+            }
+        }
+        flushPipeline(pending);
+    }
+
+    // return the FTP command a script line stands for when it needs nothing but
+    // a control connection round trip, null for anything else, including lines
+    // with the wrong number of arguments, which dispatch() reports as usual
+    private static String controlCommand(String line) {
+        String[] args = line.trim().split(" ");
+        if (args[0].equals("features") && args.length == 1) {
+            return "FEAT";
+        }
+        if (args.length != 2) return null;
+        if (args[0].equals("cd")) {
+            return "CWD " + args[1];
+        } else if (args[0].equals("user")) {
+            user = args[1];
+            return "USER " + args[1];
+        } else if (args[0].equals("pw")) {
+            password = args[1];
+            return "PASS " + args[1];
+        }
+        return null;
+    }
+
+    // Send the queued commands as one pipeline and empty the queue
+    private static void flushPipeline(List<String> pending) {
+        if (pending.isEmpty()) return;
         try {
-            dataSocket = new Socket(host, port);
+            session.pipeline(pending);
         } catch (IOException e) {
-//            e.printStackTrace();
-            System.out.println("0x3A2 Data transfer connection to " + host + " on port " + port + " failed to open");
-            return;
+            reportError(e, null);
         }
-        send("LIST");
-        String res = receive(socket); // 150 Here comes the directory listing
-        if (res!= null && (res.startsWith("150") || res.startsWith("125"))) {
-            receive(dataSocket, false);
-            receive(socket); // 226 Directory send OK | 226 Transfer done (but failed to open directory).
+        pending.clear();
+    }
+
+    // Handler for the 'stats', 'stats -j [FILE]' and 'stats -r' commands
+    // Prints the latency and throughput figures, as a table or as JSON, or clears them
+    private static void handleStats(String command) {
+        String[] statsArgs = command.trim().split(" ");
+        if (!statsArgs[0].equals("stats")) {
+            System.out.println("0x001 Invalid command.");
+        } else if (statsArgs.length == 1) {
+            metrics.print(System.out);
+        } else if (statsArgs.length == 2 && statsArgs[1].equals("-r")) {
+            metrics.reset();
+        } else if (statsArgs.length == 2 && statsArgs[1].equals("-j")) {
+            System.out.println(metrics.toJson());
+        } else if (statsArgs.length == 3 && statsArgs[1].equals("-j")) {
+            String file = statsArgs[2];
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+                out.write(metrics.toJson());
+                out.write("\n");
+            } catch (IOException e) {
+                System.out.println("0x38E Access to local file " + file + " denied");
+            }
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    // Handler for the 'limit', 'limit RATE' and 'limit HOST RATE' commands
+    // RATE is bytes per second, optionally with a k, m or g suffix, and 0 removes the limit.
+    // The limits apply to transfers already running as well as new ones.
+    private static void handleLimit(String command) {
+        String[] limitArgs = command.trim().split(" ");
+        if (!limitArgs[0].equals("limit")) {
+            System.out.println("0x001 Invalid command.");
+        } else if (limitArgs.length == 1) {
+            System.out.println("global: " + formatRate(bandwidth.getGlobalLimit()));
+            for (Map.Entry<String, Long> entry : bandwidth.getHostLimits().entrySet()) {
+                System.out.println(entry.getKey() + ": " + formatRate(entry.getValue()));
+            }
+        } else if (limitArgs.length == 2 || limitArgs.length == 3) {
+            long rate = parseRate(limitArgs[limitArgs.length - 1]);
+            if (rate < 0) {
+                System.out.println("0x002 Incorrect number of arguments.");
+            } else if (limitArgs.length == 2) {
+                bandwidth.setGlobalLimit(rate);
+            } else {
+                bandwidth.setHostLimit(limitArgs[1], rate);
+            }
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    // return the bytes per second in "100", "64k", "2m" or "1g", -1 if it isn't a rate
+    private static long parseRate(String rate) {
+        long unit = 1;
+        char last = Character.toLowerCase(rate.charAt(rate.length() - 1));
+        if (last == 'k' || last == 'm' || last == 'g') {
+            unit = last == 'k' ? 1024 : last == 'm' ? 1024 * 1024 : 1024 * 1024 * 1024;
+            rate = rate.substring(0, rate.length() - 1);
         }
         try {
-            dataSocket.close();
-        } catch (IOException e) {
-//            e.printStackTrace();
+            long value = Long.parseLong(rate);
+            return value < 0 ? -1 : value * unit;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
-    // parse and return the host
-    private static String extractHost(String line) {
-        String a, b, c, d;
-        int openBracketIndex = line.indexOf("(");
-        int closingBracketIndex = line.indexOf(")");
-        String[] numbers = line.substring(openBracketIndex + 1, closingBracketIndex).split(",");
-        a = numbers[0];
-        b = numbers[1];
-        c = numbers[2];
-        d = numbers[3];
-        String host = a + "." + b + "." + c + "." + d;
-        return host;
+
+    private static String formatRate(long rate) {
+        return rate == 0 ? "unlimited" : rate + " bytes/sec";
+    }
+
+    // Handler for the 'compress', 'compress on' and 'compress off' commands
+    // With compression on, whole-file downloads use MODE Z on servers whose
+    // FEAT reply lists it and are decompressed as they arrive.
+    private static void handleCompress(String command) {
+        String[] compressArgs = command.trim().split(" ");
+        if (!compressArgs[0].equals("compress")) {
+            System.out.println("0x001 Invalid command.");
+        } else if (compressArgs.length == 1) {
+            System.out.println("compression " + (compression ? "on" : "off"));
+        } else if (compressArgs.length == 2 && (compressArgs[1].equals("on") || compressArgs[1].equals("off"))) {
+            compression = compressArgs[1].equals("on");
+            session.setCompression(compression);
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+        }
     }
-    // parse and return the port number
-    private static int extractPort(String line) {
-        int e, f;
-        int openBracketIndex = line.indexOf("(");
-        int closingBracketIndex = line.indexOf(")");
-        String[] numbers = line.substring(openBracketIndex + 1, closingBracketIndex).split(",");
-        e = Integer.valueOf(numbers[4]);
-        f = Integer.valueOf(numbers[5]);
-        int port = e * 256 + f;
-        return port;
+
+    // Handler for the 'dir' command
+    private static void handleDir(String command) {
+        if (command.trim().equals("dir")) {
+            try {
+                Listing listing = session.listing();
+                for (RemoteFile file : listing.getFiles()) {
+                    System.out.println(file);
+                }
+                if (listing.getFiles().isEmpty() && listing.getLines() != null) {
+                    // a LIST format ListingParser doesn't know, e.g. DOS/IIS, or an
+                    // empty directory: show the server's own lines, as dir used to
+                    for (String line : listing.getLines()) {
+                        System.out.println(line);
+                    }
+                }
+            } catch (IOException e) {
+                reportError(e, null);
+            }
+        } else {
+            System.out.println("0x001 Invalid command.");
+        }
     }
 
     // Handler for the 'cd' command
@@ -146,8 +303,11 @@ public class CSftp {
             System.out.println("0x001 Invalid command.");
         } else if (cdDir.length == 2) {
             String dir = cdDir[1];
-            send("CWD " + dir);
-            receive(socket);
+            try {
+                session.changeDirectory(dir);
+            } catch (IOException e) {
+                reportError(e, null);
+            }
         } else {
             System.out.println("0x002 Incorrect number of arguments.");
         }
@@ -159,58 +319,280 @@ public class CSftp {
         if (!args[0].equals("features")) {
             System.out.println("0x001 Invalid Command.");
         } else if (args.length == 1) {
-            send("FEAT");
-            receive(socket);
+            try {
+                session.features();
+            } catch (IOException e) {
+                reportError(e, null);
+            }
         } else {
             System.out.println("0x002 Incorrect number of arguments.");
         }
     }
 
-    // Handler for the 'get REMOTE' command
+    // Handler for the 'get REMOTE', 'get -c REMOTE', 'get -v REMOTE' and 'get -s N REMOTE' commands
     private static void handleGet(String command) {
         String[] getArgs = command.trim().split(" ");
         if (!getArgs[0].equals("get")) {
             System.out.println("0x001 Invalid Command.");
         } else if (getArgs.length == 2) {
-            String remote = getArgs[1];
-            send("PASV");
-            String line = receive(socket);
-            if (line != null && line.startsWith("227")) {
-                getRemoteFile(line, remote);
+            getRemoteFile(getArgs[1]);
+        } else if (getArgs.length == 3 && getArgs[1].equals("-c")) {
+            getResumed(getArgs[2]);
+        } else if (getArgs.length == 3 && getArgs[1].equals("-v")) {
+            getVerified(getArgs[2]);
+        } else if (getArgs.length == 4 && getArgs[1].equals("-s")) {
+            int segments;
+            try {
+                segments = Integer.parseInt(getArgs[2]);
+            } catch (NumberFormatException e) {
+                segments = 0;
+            }
+            if (segments < 1) {
+                System.out.println("0x002 Incorrect number of arguments.");
+                return;
             }
+            getSegmented(getArgs[3], segments);
         } else {
             System.out.println("0x002 Incorrect number of arguments.");
         }
     }
 
     // Retrieve remote file
-    private static void getRemoteFile(String line, String fileName) {
-        String host = extractHost(line);
-        int port = extractPort(line);
-        Socket dataSocket;
+    private static void getRemoteFile(String fileName) {
+        long start = System.nanoTime();
         try {
-            dataSocket = new Socket(host, port);
+            session.binary();
+            long bytes = session.retrieve(fileName, fileName);
+            System.out.println(TransferEngine.report(bytes, System.nanoTime() - start));
         } catch (IOException e) {
-            System.out.println("0x3A2 Data transfer connection to " + host + " on port " + port + " failed to open");
-//            e.printStackTrace();
+            reportError(e, fileName);
+        }
+    }
+
+    // Retrieve remote file, computing its SHA-256 and CRC32C on the way in, and
+    // compare it with the server's own checksum when FEAT offers HASH, XMD5 or XCRC.
+    // A file that doesn't match is deleted.
+    private static void getVerified(String fileName) {
+        long start = System.nanoTime();
+        try {
+            String algorithm = session.serverChecksum();
+            Checksums checksums = algorithm == null || algorithm.equals("SHA-256")
+                    ? new Checksums("SHA-256", "CRC32C") : new Checksums("SHA-256", "CRC32C", algorithm);
+            session.binary();
+            long bytes = session.retrieve(fileName, fileName, checksums);
+            long elapsed = System.nanoTime() - start;
+            String sha256 = checksums.hex("SHA-256");
+            if (algorithm != null) {
+                try {
+                    session.verify(fileName, algorithm, algorithm.equals("SHA-256") ? sha256 : checksums.hex(algorithm));
+                } catch (ChecksumMismatchException e) {
+                    new File(fileName).delete();
+                    throw e;
+                }
+            }
+            System.out.println(TransferEngine.report(bytes, elapsed));
+            System.out.println("SHA-256 " + sha256 + ", CRC32C " + checksums.hex("CRC32C") + ", "
+                    + (algorithm == null ? "not verified, the server offers no checksum" : "verified with " + algorithm));
+        } catch (IOException e) {
+            reportError(e, fileName);
+        }
+    }
+
+    // Retrieve remote file, continuing a partial local copy if there is one
+    private static void getResumed(String remote) {
+        long start = System.nanoTime();
+        try {
+            long offset = session.resume(remote, remote);
+            long size = new File(remote).length();
+            System.out.println("Resumed at offset " + offset + ", "
+                    + TransferEngine.report(size - offset, System.nanoTime() - start));
+        } catch (IOException e) {
+            reportError(e, remote);
+        }
+    }
+
+    // Retrieve remote file in N byte ranges over N separate connections
+    private static void getSegmented(String remote, int segments) {
+        SessionFactory sessions = sessionFactory();
+        if (sessions == null) return;
+        try {
+            new SegmentedGet(sessions, segments, System.out).run(remote);
+        } catch (IOException e) {
+            reportHelperError(e, remote);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Handler for the 'mget [-p N | -e N] GLOB' command
+    // Downloads every matching file of the current directory over up to N extra connections,
+    // with -e as up to N downloads at a time on the SelectorEngine's event loops
+    private static void handleMget(String command) {
+        String[] mgetArgs = command.trim().split(" ");
+        if (!mgetArgs[0].equals("mget")) {
+            System.out.println("0x001 Invalid Command.");
             return;
         }
+        int parallelism = MultiGet.DEFAULT_PARALLELISM;
+        String glob;
+        if (mgetArgs.length == 2) {
+            glob = mgetArgs[1];
+        } else if (mgetArgs.length == 4 && (mgetArgs[1].equals("-p") || mgetArgs[1].equals("-e"))) {
+            try {
+                parallelism = Integer.parseInt(mgetArgs[2]);
+            } catch (NumberFormatException e) {
+                parallelism = 0;
+            }
+            if (parallelism < 1) {
+                System.out.println("0x002 Incorrect number of arguments.");
+                return;
+            }
+            glob = mgetArgs[3];
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+            return;
+        }
+        try {
+            MultiGet.globToPattern(glob);
+        } catch (PatternSyntaxException e) {
+            System.out.println("0x002 Incorrect number of arguments.");
+            return;
+        }
+        SessionFactory sessions = sessionFactory();
+        if (sessions == null) return;
         try {
-            send("RETR " + fileName);
-            String res = receive(socket);
-            if (res != null && (res.startsWith("150") || res.startsWith("125"))) {
-                receiveFile(dataSocket, fileName);
-                receive(socket);
+            if (mgetArgs.length == 4 && mgetArgs[1].equals("-e")) {
+                if (engine == null) {
+                    engine = new SelectorEngine();
+                }
+                new MultiGet(sessions, parallelism, System.out).run(glob, engine);
+            } else {
+                new MultiGet(sessions, parallelism, System.out).run(glob);
             }
-        } catch(FileNotFoundException fnfe) {
-            System.out.println("0x38E Access to local file " + fileName + " denied");
         } catch (IOException e) {
-            System.out.println("0x3A7 Data transfer connection I/O error, closing data connection");
+            reportHelperError(e, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Handler for the 'put LOCAL [REMOTE]' command
+    // REMOTE defaults to the local file's name in the current remote directory
+    private static void handlePut(String command) {
+        String[] putArgs = command.trim().split(" ");
+        if (!putArgs[0].equals("put")) {
+            System.out.println("0x001 Invalid Command.");
+        } else if (putArgs.length == 2 || putArgs.length == 3) {
+            String local = putArgs[1];
+            String remote = putArgs.length == 3 ? putArgs[2] : new File(local).getName();
+            long start = System.nanoTime();
+            try {
+                session.binary();
+                long bytes = session.store(local, remote);
+                System.out.println(TransferEngine.report(bytes, System.nanoTime() - start, "sent"));
+            } catch (IOException e) {
+                reportError(e, local);
+            }
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+        }
+    }
+
+    // Handler for the 'mput [-p N] GLOB' command
+    // Uploads every matching file of the local directory over up to N extra connections
+    private static void handleMput(String command) {
+        String[] mputArgs = command.trim().split(" ");
+        if (!mputArgs[0].equals("mput")) {
+            System.out.println("0x001 Invalid Command.");
+            return;
+        }
+        int parallelism = MultiPut.DEFAULT_PARALLELISM;
+        String glob;
+        if (mputArgs.length == 2) {
+            glob = mputArgs[1];
+        } else if (mputArgs.length == 4 && mputArgs[1].equals("-p")) {
+            try {
+                parallelism = Integer.parseInt(mputArgs[2]);
+            } catch (NumberFormatException e) {
+                parallelism = 0;
+            }
+            if (parallelism < 1) {
+                System.out.println("0x002 Incorrect number of arguments.");
+                return;
+            }
+            glob = mputArgs[3];
+        } else {
+            System.out.println("0x002 Incorrect number of arguments.");
+            return;
         }
         try {
-            dataSocket.close();
+            MultiGet.globToPattern(glob);
+        } catch (PatternSyntaxException e) {
+            System.out.println("0x002 Incorrect number of arguments.");
+            return;
+        }
+        SessionFactory sessions = sessionFactory();
+        if (sessions == null) return;
+        try {
+            new MultiPut(sessions, parallelism, System.out).run(Paths.get("."), glob);
         } catch (IOException e) {
-//            e.printStackTrace();
+            reportHelperError(e, ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Handler for the 'mirror [-p N] REMOTE_DIR LOCAL_DIR' command
+    // Copies every new or changed file below REMOTE_DIR into LOCAL_DIR
+    private static void handleMirror(String command) {
+        String[] mirrorArgs = command.trim().split(" ");
+        if (!mirrorArgs[0].equals("mirror")) {
+            System.out.println("0x001 Invalid Command.");
+            return;
+        }
+        int parallelism = Mirror.DEFAULT_PARALLELISM;
+        int first = 1;
+        if (mirrorArgs.length == 5 && mirrorArgs[1].equals("-p")) {
+            try {
+                parallelism = Integer.parseInt(mirrorArgs[2]);
+            } catch (NumberFormatException e) {
+                parallelism = 0;
+            }
+            first = 3;
+        } else if (mirrorArgs.length != 3) {
+            parallelism = 0;
+        }
+        if (parallelism < 1) {
+            System.out.println("0x002 Incorrect number of arguments.");
+            return;
+        }
+        String remote = mirrorArgs[first];
+        String local = mirrorArgs[first + 1];
+        try {
+            if (!remote.startsWith("/")) {
+                String cwd = session.printWorkingDirectory();
+                remote = cwd.endsWith("/") ? cwd + remote : cwd + "/" + remote;
+            }
+        } catch (IOException e) {
+            reportError(e, null);
+            return;
+        }
+        SessionFactory sessions = new SessionFactory(pool, listings, serverHost, serverPort, user, password, null);
+        sessions.setCompression(compression);
+        new Mirror(sessions, parallelism, System.out).run(remote, Paths.get(local));
+    }
+
+    // A factory for extra sessions positioned in the current remote directory
+    // return null if the directory couldn't be determined
+    private static SessionFactory sessionFactory() {
+        try {
+            String directory = session.printWorkingDirectory();
+            SessionFactory sessions = new SessionFactory(pool, listings, serverHost, serverPort, user, password, directory);
+            sessions.setCompression(compression);
+            return sessions;
+        } catch (IOException e) {
+            reportError(e, null);
+            return null;
         }
     }
 
@@ -221,8 +603,12 @@ public class CSftp {
             System.out.println("0x001 Invalid Command.");
         } else if (pwArgs.length == 2) {
             String pw = pwArgs[1];
-            send("PASS " + pw);
-            receive(socket);
+            password = pw;
+            try {
+                session.pass(pw);
+            } catch (IOException e) {
+                reportError(e, null);
+            }
         } else {
             System.out.println("0x002 Incorrect number of arguments.");
         }
@@ -235,8 +621,12 @@ public class CSftp {
             System.out.println("0x001 Invalid Command.");
         } else if (userArgs.length == 2) {
             String userName = userArgs[1];
-            send("USER " + userName);
-            receive(socket);
+            user = userName;
+            try {
+                session.user(userName);
+            } catch (IOException e) {
+                reportError(e, null);
+            }
         } else {
             System.out.println("0x002 Incorrect number of arguments.");
         }
@@ -245,12 +635,12 @@ public class CSftp {
     // If connected, sends a QUIT to the server, and closes any established connection
     // and then exits the program. This command is valid at any time.
     private static void handleQuit() {
-        if (socket.isConnected()) {
-            send("QUIT");
-            receive(socket);
+        pool.close();
+        if (engine != null) {
+            engine.close();
         }
         try {
-            socket.close();
+            session.quit();
         } catch (IOException e) {
 //            e.printStackTrace();
         } finally {
@@ -258,81 +648,44 @@ public class CSftp {
         }
     }
 
-    // Send a message to the FTP server
-    private static void send(String message) {
-        try {
-            PrintWriter out = new PrintWriter(socket.getOutputStream());
-            out.write(message + "\r\n");
-            out.flush();
-            System.out.println("--> " + message);
-        } catch (IOException e) {
-//            e.printStackTrace();
+    // Print the error message for a failed command on the prompt's session.
+    // A broken control connection ends the program, anything else leaves the
+    // session usable for the next command.
+    private static void reportError(IOException e, String localFile) {
+        if (e instanceof ControlConnectionException) {
             System.out.println("0xFFFD Control connection I/O error, closing control connection.");
             try {
-                socket.close();
+                session.close();
             } catch (IOException ioe) {
 //                ioe.printStackTrace();
             } finally {
                 System.exit(-1);
             }
+        } else if (e instanceof DataConnectionException) {
+            DataConnectionException de = (DataConnectionException) e;
+            System.out.println("0x3A2 Data transfer connection to " + de.getHost() + " on port " + de.getPort() + " failed to open");
+        } else if (e instanceof ChecksumMismatchException) {
+            ChecksumMismatchException ce = (ChecksumMismatchException) e;
+            System.out.println("0x3A9 Checksum mismatch for " + ce.getRemote() + ": " + ce.getAlgorithm() + " "
+                    + ce.getLocal() + " locally, " + ce.getServer() + " on the server, local file removed");
+        } else if (e instanceof FtpException) {
+            // the server's reply has already been echoed
+        } else if (localFile != null && (e instanceof FileNotFoundException || e instanceof FileSystemException)) {
+            System.out.println("0x38E Access to local file " + localFile + " denied");
+        } else {
+            System.out.println("0x3A7 Data transfer connection I/O error, closing data connection.");
         }
     }
 
-    // Receive response from FTP server
-    private static String receive(Socket s) {
-        return receive(s, true);
-    }
-
-    // Receive response from FTP server
-    // isControlConnection is true for control connection, false for data connection
-    // return the last line received from the server
-    private static String receive(Socket s, boolean isControlConnection) {
-        try {
-            String line;
-            if (s.isClosed()) return null;
-            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
-            String responseCode = null;
-            while ((line = reader.readLine()) != null) {
-                if (isControlConnection) {
-                    System.out.println("<-- " + line);
-                } else {
-                    System.out.println(line);
-                }
-                if (responseCode == null) {
-                    responseCode = line.substring(0, 3); // Extract the response code
-                }
-                // Identify the last line of response by responseCode followed by a <space>
-                if (line.startsWith(responseCode + " ")) break;
-            }
-            return line;
-        } catch (IOException e) {
-//            e.printStackTrace();
-            if (isControlConnection) {
-                System.out.println("0xFFFD Control connection I/O error, closing control connection.");
-            } else {
-                System.out.println("0x3A7 Data transfer connection I/O error, closing data connection.");
-            }
-            try {
-                s.close();
-            } catch (IOException ioe) {
-//                ioe.printStackTrace();
-            } finally {
-                System.exit(-1);
-            }
+    // Print the error message for a command run on extra, untraced sessions.
+    // Their replies and connections are their own, so nothing here ends the program.
+    private static void reportHelperError(IOException e, String localFile) {
+        if (e instanceof FtpException) {
+            System.out.println(e.getMessage());
+        } else if (e instanceof ControlConnectionException) {
+            System.out.println("0xFFFC Control connection to " + serverHost + " on port " + serverPort + " failed: " + e.getMessage());
+        } else {
+            reportError(e, localFile);
         }
-        return null;
-    }
-
-    // receive and write a file to local disk
-    private static void receiveFile(Socket s, String fileName) throws IOException {
-        InputStream in = new BufferedInputStream(s.getInputStream());
-        FileOutputStream out = new FileOutputStream(fileName);
-        int data;
-        while((data = in.read()) != -1) {
-            out.write(data);
-        }
-        in.close();
-        out.close();
-        s.close();
     }
 }
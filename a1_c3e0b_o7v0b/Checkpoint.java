@@ -0,0 +1,83 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Properties;
+
+//
+// Sidecar file kept next to a download started with 'get -c'.
+// It records which remote file is being fetched, how big the server said it
+// was and when it was last modified, and how many bytes are known to be
+// safely on disk, so a later 'get -c' from a fresh client can continue from
+// there as long as the remote file is still the same one.
+//
+
+class Checkpoint {
+    static final String SUFFIX = ".csftp-part";
+
+    private final String remote;
+    private final long size;     // remote size from SIZE, -1 if unknown
+    private final long modified; // remote modification time from MDTM or MLST, -1 if unknown
+    private long offset;
+
+    Checkpoint(String remote, long size, long modified, long offset) {
+        this.remote = remote;
+        this.size = size;
+        this.modified = modified;
+        this.offset = offset;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    // true if the checkpoint was written for this remote file at this size and
+    // modification time. Without a modification time on both sides there is no
+    // telling a replaced file of the same size apart, so that never matches.
+    boolean matches(String remote, long size, long modified) {
+        return this.remote.equals(remote) && this.size == size && modified >= 0 && this.modified == modified;
+    }
+
+    // Record a new durable offset and rewrite the sidecar
+    void update(String local, long offset) throws IOException {
+        this.offset = offset;
+        save(local);
+    }
+
+    // Write the sidecar through a temporary file so a crash never leaves half of it
+    void save(String local) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("remote", remote);
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("modified", Long.toString(modified));
+        properties.setProperty("offset", Long.toString(offset));
+        Path path = sidecar(local);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            properties.store(out, "csftp resume checkpoint");
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // return the checkpoint stored for the local file, null if there is none or it's unreadable
+    static Checkpoint load(String local) {
+        Path path = sidecar(local);
+        if (!Files.exists(path)) return null;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+            return new Checkpoint(properties.getProperty("remote", ""),
+                    Long.parseLong(properties.getProperty("size", "-1")),
+                    Long.parseLong(properties.getProperty("modified", "-1")),
+                    Long.parseLong(properties.getProperty("offset", "0")));
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static void delete(String local) throws IOException {
+        Files.deleteIfExists(sidecar(local));
+    }
+
+    private static Path sidecar(String local) {
+        return Paths.get(local + SUFFIX);
+    }
+}
@@ -0,0 +1,36 @@
+import java.io.IOException;
+
+//
+// Raised when a downloaded file's checksum differs from the one the server reports for it
+//
+
+class ChecksumMismatchException extends IOException {
+    private final String remote;
+    private final String algorithm;
+    private final String local;
+    private final String server;
+
+    ChecksumMismatchException(String remote, String algorithm, String local, String server) {
+        super(algorithm + " of " + remote + " is " + local + ", server says " + server);
+        this.remote = remote;
+        this.algorithm = algorithm;
+        this.local = local;
+        this.server = server;
+    }
+
+    String getRemote() {
+        return remote;
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    String getLocal() {
+        return local;
+    }
+
+    String getServer() {
+        return server;
+    }
+}
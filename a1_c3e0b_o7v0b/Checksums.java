@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+//
+// Checksums of a download computed while its bytes pass through the copy
+// loop, so verifying a file never needs a second pass over it.
+// Algorithms are the MessageDigest names ("SHA-256", "MD5") plus "CRC32"
+// (what XCRC answers with) and "CRC32C".
+//
+
+class Checksums {
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private final Map<String, Checksum> checksums = new LinkedHashMap<String, Checksum>();
+
+    Checksums(String... algorithms) {
+        for (String algorithm : algorithms) {
+            if (algorithm.equals("CRC32")) {
+                checksums.put(algorithm, new CRC32());
+            } else if (algorithm.equals("CRC32C")) {
+                checksums.put(algorithm, new CRC32C());
+            } else {
+                try {
+                    digests.put(algorithm, MessageDigest.getInstance(algorithm));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("Unknown checksum algorithm " + algorithm, e);
+                }
+            }
+        }
+    }
+
+    // Add the bytes between the buffer's position and limit; the position is left as it was
+    void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        for (MessageDigest digest : digests.values()) {
+            digest.update(buffer);
+            buffer.position(position);
+        }
+        for (Checksum checksum : checksums.values()) {
+            checksum.update(buffer);
+            buffer.position(position);
+        }
+    }
+
+    // return the lower case hex value of the algorithm over everything added so far
+    // A digest is finished by this, so ask for each algorithm once.
+    String hex(String algorithm) {
+        Checksum checksum = checksums.get(algorithm);
+        if (checksum != null) {
+            return String.format("%08x", checksum.getValue());
+        }
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            throw new IllegalArgumentException("Checksum " + algorithm + " was not computed");
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// The control connection to an FTP server.
+// One buffered reader and one writer live as long as the socket, so bytes
+// read ahead of a reply are kept for the next one instead of being dropped.
+//
+
+class ControlConnection implements Closeable {
+    static final int BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final Writer out;
+
+    // read-ahead buffer shared by every reply
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // holds the bytes of the line currently being assembled
+    private byte[] lineBuffer = new byte[256];
+
+    ControlConnection(String host, int port) throws IOException {
+        this(new Socket(host, port));
+    }
+
+    ControlConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    // the server's address, which EPSV data connections go to
+    InetAddress getRemoteAddress() {
+        return socket.getInetAddress();
+    }
+
+    // Send a single command terminated by CRLF
+    void send(String command) throws IOException {
+        out.write(command);
+        out.write("\r\n");
+        out.flush();
+    }
+
+    // Send several commands, each terminated by CRLF, with a single flush
+    void send(List<String> commands) throws IOException {
+        for (String command : commands) {
+            out.write(command);
+            out.write("\r\n");
+        }
+        out.flush();
+    }
+
+    // Read one full reply, following "xyz-" continuation lines until "xyz "
+    // return null if the server closed the connection
+    FtpReply readReply() throws IOException {
+        String first = readLine();
+        if (first == null) return null;
+        List<String> lines = new ArrayList<String>(1);
+        lines.add(first);
+        int code = parseCode(first);
+        if (first.length() > 3 && first.charAt(3) == '-') {
+            String line;
+            while ((line = readLine()) != null) {
+                lines.add(line);
+                if (line.length() >= 4 && parseCode(line) == code && line.charAt(3) == ' ') break;
+            }
+        }
+        return new FtpReply(code, lines);
+    }
+
+    // Read a line terminated by LF, dropping the CR
+    // return null at end of stream
+    private String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return length == 0 ? null : decode(length);
+                }
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                return decode(length);
+            }
+            if (length == lineBuffer.length) {
+                byte[] grown = new byte[lineBuffer.length * 2];
+                System.arraycopy(lineBuffer, 0, grown, 0, length);
+                lineBuffer = grown;
+            }
+            lineBuffer[length++] = b;
+        }
+    }
+
+    private String decode(int length) {
+        if (length > 0 && lineBuffer[length - 1] == '\r') length--;
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // the numeric reply code of a line, or -1 if it doesn't start with three digits
+    static int parseCode(String line) {
+        if (line.length() < 3) return -1;
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
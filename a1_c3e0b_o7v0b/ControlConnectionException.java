@@ -0,0 +1,17 @@
+import java.io.IOException;
+
+//
+// Raised when the control connection itself fails: an I/O error while
+// sending a command or reading a reply, or the server hanging up.
+// The session can't be used any more once this has been thrown.
+//
+
+class ControlConnectionException extends IOException {
+    ControlConnectionException(String message) {
+        super(message);
+    }
+
+    ControlConnectionException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+}
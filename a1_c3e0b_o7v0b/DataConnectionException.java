@@ -0,0 +1,24 @@
+import java.io.IOException;
+
+//
+// Raised when the data connection announced by the server can't be opened
+//
+
+class DataConnectionException extends IOException {
+    private final String host;
+    private final int port;
+
+    DataConnectionException(String host, int port, IOException cause) {
+        super("Data transfer connection to " + host + " on port " + port + " failed to open", cause);
+        this.host = host;
+        this.port = port;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+}
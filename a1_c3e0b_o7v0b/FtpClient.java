@@ -0,0 +1,122 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+//
+// Asynchronous front end to an FtpSession.
+// Every call returns immediately with a CompletableFuture. Calls on the same
+// client run one after another in the order they were made, since they share
+// a control connection, while different clients run in parallel on the
+// executor. Failures complete the future exceptionally with the IOException
+// thrown by the session (see FtpSession for the kinds).
+//
+
+class FtpClient implements Closeable {
+    // Shared by clients that aren't given an executor of their own
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ftp-client");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // A blocking session call
+    interface Operation<T> {
+        T run(FtpSession session) throws IOException;
+    }
+
+    private final FtpSession session;
+    private final Executor executor;
+
+    // Completes when the last submitted operation has finished
+    private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+    private FtpClient(FtpSession session, Executor executor) {
+        this.session = session;
+        this.executor = executor;
+    }
+
+    static CompletableFuture<FtpClient> connect(String host, int port) {
+        return connect(host, port, DEFAULT_EXECUTOR);
+    }
+
+    // Open a session on the executor
+    static CompletableFuture<FtpClient> connect(final String host, final int port, final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return new FtpClient(FtpSession.open(host, port), executor);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    FtpSession getSession() {
+        return session;
+    }
+
+    CompletableFuture<Void> login(String user, String password) {
+        return submit(s -> {
+            s.login(user, password);
+            return null;
+        });
+    }
+
+    CompletableFuture<Void> cwd(String dir) {
+        return submit(s -> {
+            s.changeDirectory(dir);
+            return null;
+        });
+    }
+
+    CompletableFuture<String> pwd() {
+        return submit(FtpSession::printWorkingDirectory);
+    }
+
+    CompletableFuture<List<String>> features() {
+        return submit(FtpSession::features);
+    }
+
+    CompletableFuture<List<String>> list() {
+        return submit(FtpSession::list);
+    }
+
+    // complete with the number of bytes written to local
+    CompletableFuture<Long> retrieve(String remote, String local) {
+        return submit(s -> s.retrieve(remote, local));
+    }
+
+    CompletableFuture<Void> quit() {
+        return submit(s -> {
+            s.quit();
+            return null;
+        });
+    }
+
+    // Queue an operation behind every operation submitted before it
+    synchronized <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> next = tail.handle((result, failure) -> null).thenApplyAsync(ignored -> {
+            try {
+                return operation.run(session);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+        tail = next;
+        return next;
+    }
+
+    // Close the control connection without waiting for queued operations
+    @Override
+    public void close() throws IOException {
+        session.close();
+    }
+}
@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+//
+// Raised when the server answers a command with an unexpected reply
+//
+
+class FtpException extends IOException {
+    // The reply that caused the failure, null if the server closed the connection
+    private final FtpReply reply;
+
+    FtpException(String command, FtpReply reply) {
+        super(command + " failed: " + (reply == null ? "connection closed" : reply.getLastLine()));
+        this.reply = reply;
+    }
+
+    FtpReply getReply() {
+        return reply;
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.Collections;
+import java.util.List;
+
+//
+// A complete reply read from the control connection.
+// Multi-line replies ("xyz-" ... "xyz ") keep every line in order.
+//
+
+class FtpReply {
+    private final int code;
+    private final List<String> lines;
+
+    FtpReply(int code, List<String> lines) {
+        this.code = code;
+        this.lines = Collections.unmodifiableList(lines);
+    }
+
+    // the three digit reply code
+    int getCode() {
+        return code;
+    }
+
+    // every line of the reply, including the code prefixes
+    List<String> getLines() {
+        return lines;
+    }
+
+    // the final line of the reply, e.g. "226 Transfer complete"
+    String getLastLine() {
+        return lines.get(lines.size() - 1);
+    }
+
+    // 1xx: the action is being started, expect another reply
+    boolean isPreliminary() {
+        return code >= 100 && code < 200;
+    }
+
+    // 2xx: the action completed
+    boolean isCompletion() {
+        return code >= 200 && code < 300;
+    }
+
+    // 3xx: the command was accepted, the server needs more information
+    boolean isIntermediate() {
+        return code >= 300 && code < 400;
+    }
+
+    @Override
+    public String toString() {
+        return getLastLine();
+    }
+}
@@ -0,0 +1,785 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// A single conversation with an FTP server over its own control connection.
+// Sessions hold no static state, so any number of them can be open at once,
+// one per thread. Methods block; FtpClient wraps them in CompletableFutures.
+// Failures are reported as exceptions, never by exiting:
+//   FtpException               - the server refused a command
+//   ControlConnectionException - the control connection broke, the session is dead
+//   DataConnectionException    - the EPSV or PASV address couldn't be connected to
+//   other IOExceptions         - local file or data transfer errors
+//
+
+class FtpSession implements Closeable {
+    private final String host;
+    private final int port;
+    private final ControlConnection control;
+
+    // How many bytes a resumable download writes between checkpoints
+    static final long CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+    // How many pipelined commands are sent before their replies are read,
+    // so that unread replies never fill the socket buffers both ways
+    static final int PIPELINE_DEPTH = 64;
+    // How long to wait for a data connection to open, in milliseconds. The
+    // EPSV attempt gets less, as a firewall that drops it only costs the wait
+    // before falling back to PASV.
+    static final int EPSV_CONNECT_TIMEOUT = 3000;
+    static final int DATA_CONNECT_TIMEOUT = 15000;
+
+    // When set, commands and replies are echoed the way the REPL prints them
+    private PrintStream trace = null;
+
+    // When set, parsed listings are shared through it
+    private ListingCache listingCache = null;
+
+    // When set, latencies and transfer sizes are recorded in it
+    private Metrics metrics = null;
+    // System.nanoTime when the last command was sent
+    private long sentAt = 0;
+
+    // When set, data transfers keep to its limits for this session's host
+    private BandwidthScheduler.Throttle throttle = null;
+
+    // The user given to USER, null before that
+    private String user = null;
+    // Features from the last FEAT, null until it has been sent
+    private List<String> features = null;
+    // The current directory, null when it has to be asked for with PWD
+    private String directory = null;
+    // true once TYPE I has been accepted
+    private boolean binary = false;
+    // true to download whole files in MODE Z when FEAT offers it
+    private boolean compression = false;
+    // true while MODE Z is in effect
+    private boolean compressed = false;
+    // false once EPSV has failed, so data connections use PASV straight away
+    private boolean extendedPassive = true;
+
+    private FtpSession(String host, int port, ControlConnection control) {
+        this.host = host;
+        this.port = port;
+        this.control = control;
+    }
+
+    // Connect to the server and consume its greeting
+    static FtpSession open(String host, int port) throws IOException {
+        return open(host, port, null);
+    }
+
+    // Connect to the server and consume its greeting, echoing the conversation to trace
+    static FtpSession open(String host, int port, PrintStream trace) throws IOException {
+        return open(host, port, trace, null);
+    }
+
+    // Connect to the server and consume its greeting, recording the time it took in metrics
+    static FtpSession open(String host, int port, PrintStream trace, Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        ControlConnection control;
+        try {
+            control = new ControlConnection(host, port);
+        } catch (IOException e) {
+            throw new ControlConnectionException(e);
+        }
+        FtpSession session = new FtpSession(host, port, control);
+        session.setTrace(trace);
+        session.setMetrics(metrics);
+        try {
+            session.expect("connect", session.readReply(), 2);
+        } catch (IOException e) {
+            session.control.close();
+            throw e;
+        }
+        session.record(Metrics.CONNECT, start);
+        return session;
+    }
+
+    void setTrace(PrintStream trace) {
+        this.trace = trace;
+    }
+
+    void setListingCache(ListingCache listingCache) {
+        this.listingCache = listingCache;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setBandwidthScheduler(BandwidthScheduler scheduler) {
+        this.throttle = scheduler == null ? null : scheduler.throttle(host);
+    }
+
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    // Identifies the server, e.g. for metrics
+    String getServer() {
+        return host + ":" + port;
+    }
+
+    // Identifies the server and account, e.g. for caching listings
+    String getServerKey() {
+        return host + ":" + port + ":" + user;
+    }
+
+    // Send USER, whatever the reply
+    FtpReply user(String user) throws IOException {
+        return command("USER " + user);
+    }
+
+    // Send PASS, whatever the reply
+    FtpReply pass(String password) throws IOException {
+        return command("PASS " + password);
+    }
+
+    // USER followed by PASS when the server asks for one
+    void login(String user, String password) throws IOException {
+        long start = System.nanoTime();
+        FtpReply reply = user(user);
+        if (reply.isIntermediate()) {
+            reply = pass(password);
+        }
+        expect("USER " + user, reply, 2);
+        record(Metrics.LOGIN, start);
+    }
+
+    // return the feature lines of the FEAT reply, without the leading space
+    List<String> features() throws IOException {
+        expect("FEAT", command("FEAT"), 2);
+        return features;
+    }
+
+    // true if FEAT lists the feature; FEAT is only sent the first time
+    boolean supports(String feature) throws IOException {
+        return feature(feature) != null;
+    }
+
+    // return the FEAT line of the feature, e.g. "HASH SHA-256*;MD5", null if it isn't listed
+    String feature(String feature) throws IOException {
+        if (features == null) {
+            try {
+                features();
+            } catch (FtpException e) {
+                features = new ArrayList<String>(); // no FEAT, no extensions
+            }
+        }
+        for (String line : features) {
+            if (line.regionMatches(true, 0, feature, 0, feature.length())
+                    && (line.length() == feature.length() || line.charAt(feature.length()) == ' ')) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    // Check that the session is still alive
+    void noop() throws IOException {
+        expect("NOOP", command("NOOP"), 2);
+    }
+
+    // See track() for how the current directory is kept
+    void changeDirectory(String dir) throws IOException {
+        expect("CWD " + dir, command("CWD " + dir), 2);
+    }
+
+    // return the current directory if it is known without asking, null otherwise
+    String getDirectory() {
+        return directory;
+    }
+
+    // return the current remote directory as reported by PWD
+    String printWorkingDirectory() throws IOException {
+        if (directory != null) return directory;
+        FtpReply reply = expect("PWD", command("PWD"), 2);
+        String line = reply.getLastLine();
+        int open = line.indexOf('"');
+        int close = line.lastIndexOf('"');
+        if (open < 0 || close <= open) {
+            throw new FtpException("PWD", reply);
+        }
+        directory = line.substring(open + 1, close).replace("\"\"", "\"");
+        return directory;
+    }
+
+    // return the parsed listing of the current directory
+    List<RemoteFile> listFiles() throws IOException {
+        return listing().getFiles();
+    }
+
+    // return the listing of the current directory, parsed and, after LIST, raw.
+    // MLSD is used when FEAT advertises it, LIST otherwise. With a listing
+    // cache, a fresh cached listing is returned without any data transfer.
+    Listing listing() throws IOException {
+        String dir = null;
+        if (listingCache != null) {
+            dir = printWorkingDirectory();
+            Listing cached = listingCache.get(getServerKey(), dir);
+            if (cached != null) return cached;
+        }
+        Listing listing = null;
+        if (supports("MLSD")) {
+            try {
+                listing = new Listing(ListingParser.parseMlsd(transferLines("MLSD")), null);
+            } catch (FtpException e) {
+                // advertised but refused, fall back to LIST
+            }
+        }
+        if (listing == null) {
+            List<String> lines = transferLines("LIST");
+            listing = new Listing(ListingParser.parseList(lines), lines);
+        }
+        if (listingCache != null) {
+            listingCache.put(getServerKey(), dir, listing);
+        }
+        return listing;
+    }
+
+    // Forget any cached listing of the current directory, e.g. after writing to it
+    void invalidateListing() throws IOException {
+        if (listingCache != null) {
+            listingCache.invalidate(getServerKey(), printWorkingDirectory());
+        }
+    }
+
+    // Forget any cached listing of the directory remote is in
+    private void invalidateListing(String remote) throws IOException {
+        if (listingCache == null) return;
+        if (remote.indexOf('/') < 0) {
+            invalidateListing();
+        } else {
+            listingCache.invalidateAll(getServerKey());
+        }
+    }
+
+    // return the raw LIST output of the current directory, one entry per line
+    List<String> list() throws IOException {
+        return transferLines("LIST");
+    }
+
+    // Run a listing command and collect the lines sent on its data connection
+    private List<String> transferLines(String command) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        SocketChannel data = startTransfer(command, 0);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    data.socket().getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            abandon(data);
+            throw e;
+        }
+        data.close();
+        expect(command, readReply(), 2);
+        return lines;
+    }
+
+    // Switch the session to binary (image) transfers
+    // Only the first call costs a round trip
+    void binary() throws IOException {
+        if (binary) return;
+        expect("TYPE I", command("TYPE I"), 2);
+    }
+
+    // return the size of the remote file as reported by SIZE
+    long size(String remote) throws IOException {
+        FtpReply reply = expect("SIZE " + remote, command("SIZE " + remote), 2);
+        String line = reply.getLastLine();
+        try {
+            return Long.parseLong(line.substring(4).trim());
+        } catch (RuntimeException e) {
+            throw new FtpException("SIZE " + remote, reply);
+        }
+    }
+
+    // return the modification time of remote in milliseconds since the epoch,
+    // from MDTM, or from MLST when only that is offered; -1 if the server can't tell
+    long modified(String remote) throws IOException {
+        if (supports("MDTM")) {
+            FtpReply reply = command("MDTM " + remote);
+            if (reply.isCompletion() && reply.getLastLine().length() > 4) {
+                return ListingParser.parseMlsdTime(reply.getLastLine().substring(4).trim());
+            }
+        } else if (supports("MLST")) {
+            FtpReply reply = command("MLST " + remote);
+            List<String> lines = reply.getLines();
+            if (reply.isCompletion() && lines.size() > 2) {
+                // the facts are on the line between "250-" and "250 "
+                RemoteFile file = ListingParser.parseMlsdLine(lines.get(1).trim());
+                if (file != null) return file.getModified();
+            }
+        }
+        return -1;
+    }
+
+    // Download remote into the local file, replacing it.
+    // The local file is only touched once the server has accepted the RETR.
+    // return the number of bytes written
+    long retrieve(String remote, String local) throws IOException {
+        return retrieve(remote, local, null);
+    }
+
+    // As above, adding every byte received to checksums when they are given
+    // With compression on, the file comes in MODE Z if the server offers it.
+    long retrieve(String remote, String local, Checksums checksums) throws IOException {
+        SocketChannel data = startTransfer("RETR " + remote, 0, compression && supports("MODE Z"));
+        long bytes;
+        try (FileChannel out = FileChannel.open(Paths.get(local), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            bytes = compressed ? inflate(data, out, checksums) : receive(data, out, 0, Long.MAX_VALUE, checksums);
+        } catch (IOException e) {
+            abandon(data);
+            throw e;
+        }
+        data.close();
+        expect("RETR " + remote, readReply(), 2);
+        return bytes;
+    }
+
+    // Download at most count bytes of remote, starting offset bytes into it,
+    // and write them to out at the same offset. A non-zero offset is sent as REST.
+    // If the range ends before the file does, the data connection is closed
+    // early and whatever the server answers to that is accepted.
+    // return the number of bytes written
+    long retrieve(String remote, FileChannel out, long offset, long count) throws IOException {
+        SocketChannel data = startTransfer("RETR " + remote, offset);
+        long bytes;
+        try {
+            bytes = receive(data, out, offset, count, null);
+        } catch (IOException e) {
+            abandon(data);
+            throw e;
+        }
+        data.close();
+        if (bytes < count) {
+            expect("RETR " + remote, readReply(), 2);
+        } else {
+            // we hung up first, the server may answer 226, 426, 451 or drop the session
+            try {
+                readReply();
+            } catch (IOException e) {
+                control.close();
+            }
+        }
+        return bytes;
+    }
+
+    // Upload the local file as remote, replacing it.
+    // The local file is opened before STOR is sent, so a missing file costs no round trip.
+    // return the number of bytes sent
+    long store(String local, String remote) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(local), StandardOpenOption.READ)) {
+            SocketChannel data = startTransfer("STOR " + remote, 0);
+            try {
+                long bytes;
+                try {
+                    bytes = TransferEngine.send(in, 0, in.size(), data, throttle);
+                } catch (IOException e) {
+                    abandon(data);
+                    throw e;
+                }
+                // closing the data connection is the end of file for the server
+                data.close();
+                expect("STOR " + remote, readReply(), 2);
+                return bytes;
+            } finally {
+                invalidateListing(remote);
+            }
+        }
+    }
+
+    // return the checksum the server can compute for its files, named as in
+    // Checksums: SHA-256 through HASH, MD5 through XMD5 or CRC32 through XCRC,
+    // in that order of preference, or null when FEAT offers none of them
+    String serverChecksum() throws IOException {
+        String hash = feature("HASH");
+        if (hash != null && hash.toUpperCase().contains("SHA-256")) return "SHA-256";
+        if (supports("XMD5")) return "MD5";
+        if (supports("XCRC")) return "CRC32";
+        return null;
+    }
+
+    // Ask the server for the serverChecksum() algorithm's checksum of remote
+    // and fail unless it equals the hex value computed locally
+    void verify(String remote, String algorithm, String local) throws IOException {
+        String command;
+        int digits;
+        if (algorithm.equals("SHA-256")) {
+            // HASH uses the algorithm FEAT marks with '*' unless told otherwise
+            if (!feature("HASH").toUpperCase().contains("SHA-256*")) {
+                expect("OPTS HASH SHA-256", command("OPTS HASH SHA-256"), 2);
+            }
+            command = "HASH " + remote;
+            digits = 64;
+        } else if (algorithm.equals("MD5")) {
+            command = "XMD5 " + remote;
+            digits = 32;
+        } else if (algorithm.equals("CRC32")) {
+            command = "XCRC " + remote;
+            digits = 8;
+        } else {
+            throw new IllegalArgumentException("No server command for " + algorithm);
+        }
+        FtpReply reply = expect(command, command(command), 2);
+        // HASH answers "213 SHA-256 0-49 <hex> name", XMD5 and XCRC "250 <hex>",
+        // though servers vary, so the checksum is the first hex word of the right length
+        String server = null;
+        for (String word : reply.getLastLine().substring(4).split(" ")) {
+            if (word.length() == digits && word.matches("[0-9A-Fa-f]+")) {
+                server = word.toLowerCase();
+                break;
+            }
+        }
+        if (server == null) {
+            throw new FtpException(command, reply);
+        }
+        if (!server.equals(local)) {
+            throw new ChecksumMismatchException(remote, algorithm, local, server);
+        }
+    }
+
+    // Continue downloading remote into local from where an earlier attempt stopped.
+    // The starting point is the offset in the local file's checkpoint when it
+    // still describes the same remote file, by name, size and modification
+    // time, and 0 when it doesn't. Without a checkpoint it is the local file's length.
+    // The checkpoint is written once the server has accepted the RETR, rewritten
+    // every CHECKPOINT_INTERVAL bytes after the data is forced to disk, and
+    // removed once the transfer completes. If the server refuses the RETR, a
+    // local file this call created is removed again.
+    // return the offset the transfer resumed from
+    long resume(String remote, String local) throws IOException {
+        binary();
+        long size = -1;
+        try {
+            size = size(remote);
+        } catch (FtpException e) {
+            // SIZE is optional, resume without knowing the length
+        }
+        long modified = modified(remote);
+        Path path = Paths.get(local);
+        boolean existed = Files.exists(path);
+        boolean accepted = false;
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = out.size();
+            Checkpoint checkpoint = Checkpoint.load(local);
+            if (checkpoint != null) {
+                offset = checkpoint.matches(remote, size, modified) ? Math.min(checkpoint.getOffset(), offset) : 0;
+            }
+            if (size >= 0 && offset > size) {
+                offset = 0;
+            }
+            out.truncate(offset);
+            if (offset == size) {
+                Checkpoint.delete(local);
+                return offset;
+            }
+            long start = offset;
+            SocketChannel data = startTransfer("RETR " + remote, offset);
+            accepted = true;
+            checkpoint = new Checkpoint(remote, size, modified, offset);
+            try {
+                checkpoint.save(local);
+                long n = receiveFirst(data, out, offset, CHECKPOINT_INTERVAL, null);
+                long first = System.nanoTime();
+                n += TransferEngine.transfer(data, out, offset + n, CHECKPOINT_INTERVAL - n, null, throttle);
+                while (true) {
+                    offset += n;
+                    out.force(false);
+                    checkpoint.update(local, offset);
+                    if (n < CHECKPOINT_INTERVAL) break;
+                    n = TransferEngine.transfer(data, out, offset, CHECKPOINT_INTERVAL, null, throttle);
+                }
+                if (metrics != null) {
+                    metrics.recordTransfer(getServer(), offset - start, System.nanoTime() - first);
+                }
+            } catch (IOException e) {
+                abandon(data);
+                throw e;
+            }
+            data.close();
+            expect("RETR " + remote, readReply(), 2);
+            Checkpoint.delete(local);
+            return start;
+        } catch (FtpException e) {
+            if (!accepted && !existed) {
+                Files.deleteIfExists(path);
+            }
+            throw e;
+        }
+    }
+
+    void quit() throws IOException {
+        try {
+            command("QUIT");
+        } finally {
+            control.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        control.close();
+    }
+
+    // Open a data connection with EPSV, which works over IPv6 and through NAT,
+    // or with PASV once the server has refused EPSV, answered it with a reply
+    // that has no port, or its data connection couldn't be opened; EPSV isn't
+    // tried again on this session after that.
+    // See PassiveReply.dataAddress() for when the PASV address isn't used.
+    SocketChannel openPassive() throws IOException {
+        if (extendedPassive) {
+            FtpReply reply = command("EPSV");
+            if (reply.isCompletion()) {
+                // a 229 without a port in it is as good as a refusal
+                int port = PassiveReply.parseEpsv(reply.getLastLine());
+                if (port >= 0) {
+                    try {
+                        return connectData(control.getRemoteAddress(), port, EPSV_CONNECT_TIMEOUT);
+                    } catch (DataConnectionException e) {
+                        // a firewall that only knows PASV, try that
+                    }
+                }
+            }
+            extendedPassive = false;
+        }
+        FtpReply reply = expect("PASV", command("PASV"), 2);
+        long pasv = PassiveReply.parsePasv(reply.getLastLine());
+        if (pasv < 0) throw new FtpException("PASV", reply);
+        return connectData(PassiveReply.dataAddress(pasv, control.getRemoteAddress()), PassiveReply.port(pasv),
+                DATA_CONNECT_TIMEOUT);
+    }
+
+    // Open a data connection, giving up after timeoutMillis
+    private SocketChannel connectData(InetAddress address, int port, int timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        SocketChannel data = SocketChannel.open();
+        try {
+            data.socket().connect(new InetSocketAddress(address, port), timeoutMillis);
+        } catch (IOException e) {
+            data.close();
+            throw new DataConnectionException(address.getHostAddress(), port, e);
+        }
+        record(Metrics.DATA_CONNECT, start);
+        return data;
+    }
+
+    // Copy at most count bytes of a started transfer into out at position,
+    // recording the time to first byte and the throughput when metrics are kept
+    // return the number of bytes written
+    private long receive(SocketChannel data, FileChannel out, long position, long count, Checksums checksums)
+            throws IOException {
+        if (metrics == null) {
+            return TransferEngine.transfer(data, out, position, count, checksums, throttle);
+        }
+        long bytes = receiveFirst(data, out, position, count, checksums);
+        long start = System.nanoTime();
+        if (bytes > 0 && bytes < count) {
+            bytes += TransferEngine.transfer(data, out, position + bytes, count - bytes, checksums, throttle);
+        }
+        metrics.recordTransfer(getServer(), bytes, System.nanoTime() - start);
+        return bytes;
+    }
+
+    // Decompress a started MODE Z transfer into out, recording the throughput
+    // when metrics are kept
+    // return the number of decompressed bytes written
+    private long inflate(SocketChannel data, FileChannel out, Checksums checksums) throws IOException {
+        long start = System.nanoTime();
+        long bytes = TransferEngine.inflate(data, out, 0, checksums, throttle);
+        if (metrics != null) {
+            metrics.recordTransfer(getServer(), bytes, System.nanoTime() - start);
+        }
+        return bytes;
+    }
+
+    // Wait for the first bytes of a started transfer and write them to out at position
+    // return the number of bytes written, 0 if the transfer was empty
+    private long receiveFirst(SocketChannel data, FileChannel out, long position, long count, Checksums checksums)
+            throws IOException {
+        long n = TransferEngine.transferOnce(data, out, position, count, checksums);
+        record(Metrics.FIRST_BYTE, sentAt);
+        if (throttle != null && throttle.isLimited()) throttle.acquire(n);
+        return n;
+    }
+
+    // Open a data connection and send command on it in stream mode, after REST when offset > 0
+    // return the data connection once the server has answered 1xx
+    private SocketChannel startTransfer(String command, long offset) throws IOException {
+        return startTransfer(command, offset, false);
+    }
+
+    // As above, asking for MODE Z first when compress is set. A server that
+    // refuses MODE Z leaves the transfer in stream mode; compressed tells which.
+    // Ranges, resumes, listings and uploads always use stream mode, as REST
+    // offsets into a compressed stream aren't interpreted alike by servers.
+    private SocketChannel startTransfer(String command, long offset, boolean compress) throws IOException {
+        if (compress != compressed) {
+            FtpReply reply = command(compress ? "MODE Z" : "MODE S");
+            if (!compress) expect("MODE S", reply, 2);
+        }
+        SocketChannel data = openPassive();
+        try {
+            if (offset > 0) {
+                expect("REST " + offset, command("REST " + offset), 3);
+            }
+            expect(command, command(command), 1);
+            return data;
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    // Close a data connection that failed mid-transfer and consume the
+    // server's answer to it, keeping the control connection in step
+    private void abandon(SocketChannel data) throws IOException {
+        data.close();
+        readReply();
+    }
+
+    // Send a command and return the reply, whatever its code
+    FtpReply command(String command) throws IOException {
+        if (trace != null) trace.println("--> " + command);
+        sentAt = System.nanoTime();
+        try {
+            control.send(command);
+        } catch (IOException e) {
+            throw new ControlConnectionException(e);
+        }
+        FtpReply reply = readReply();
+        if (metrics != null) {
+            record(verb(command), sentAt);
+        }
+        track(command, reply);
+        return reply;
+    }
+
+    // Send commands without waiting for each reply, then read the replies in
+    // order, so a run of commands costs one round trip instead of one each.
+    // Only for commands without a data transfer. Commands go out PIPELINE_DEPTH
+    // at a time.
+    // return the replies, whatever their codes, in the order of commands
+    List<FtpReply> pipeline(List<String> commands) throws IOException {
+        List<FtpReply> replies = new ArrayList<FtpReply>(commands.size());
+        for (int from = 0; from < commands.size(); from += PIPELINE_DEPTH) {
+            List<String> window = commands.subList(from, Math.min(from + PIPELINE_DEPTH, commands.size()));
+            if (trace != null) {
+                for (String command : window) {
+                    trace.println("--> " + command);
+                }
+            }
+            sentAt = System.nanoTime();
+            try {
+                control.send(window);
+            } catch (IOException e) {
+                throw new ControlConnectionException(e);
+            }
+            for (String command : window) {
+                FtpReply reply = readReply();
+                if (metrics != null) {
+                    record(verb(command), sentAt);
+                }
+                track(command, reply);
+                replies.add(reply);
+            }
+        }
+        return replies;
+    }
+
+    // Bring what the session knows about the server up to date with the reply
+    // to a command that changes it. Every command passes through here, so the
+    // cached state is right however the command was sent.
+    private void track(String command, FtpReply reply) {
+        String verb = verb(command).toUpperCase();
+        String argument = command.length() > verb.length() ? command.substring(verb.length() + 1) : "";
+        if (verb.equals("USER")) {
+            user = argument;
+            directory = null;
+        } else if (verb.equals("CWD") || verb.equals("CDUP") || verb.equals("XCWD")) {
+            // an absolute path becomes the current directory as is, anything
+            // else is looked up with PWD the next time it is needed
+            directory = null;
+            if (reply.isCompletion() && !verb.equals("CDUP") && argument.startsWith("/") && !argument.contains("/.")) {
+                directory = argument.length() > 1 && argument.endsWith("/")
+                        ? argument.substring(0, argument.length() - 1) : argument;
+            }
+        } else if (verb.equals("TYPE")) {
+            binary = reply.isCompletion() && argument.equalsIgnoreCase("I");
+        } else if (verb.equals("MODE") && reply.isCompletion()) {
+            compressed = argument.equalsIgnoreCase("Z");
+        } else if (verb.equals("FEAT") && reply.isCompletion()) {
+            List<String> features = new ArrayList<String>();
+            List<String> lines = reply.getLines();
+            for (int i = 1; i < lines.size() - 1; i++) {
+                features.add(lines.get(i).trim());
+            }
+            this.features = features;
+        }
+    }
+
+    // the command word, e.g. "CWD" for "CWD /pub"
+    private static String verb(String command) {
+        int space = command.indexOf(' ');
+        return space < 0 ? command : command.substring(0, space);
+    }
+
+    // Record the time since start under name, if metrics are kept
+    private void record(String name, long start) {
+        if (metrics != null) {
+            metrics.recordLatency(getServer(), name, System.nanoTime() - start);
+        }
+    }
+
+    private FtpReply readReply() throws IOException {
+        FtpReply reply;
+        try {
+            reply = control.readReply();
+        } catch (IOException e) {
+            throw new ControlConnectionException(e);
+        }
+        if (reply == null) {
+            throw new ControlConnectionException("Connection closed by server");
+        }
+        if (trace != null) {
+            for (String line : reply.getLines()) {
+                trace.println("<-- " + line);
+            }
+        }
+        return reply;
+    }
+
+    // Fail unless reply has the given first digit
+    private FtpReply expect(String command, FtpReply reply, int firstDigit) throws FtpException {
+        if (reply == null || reply.getCode() / 100 != firstDigit) {
+            throw new FtpException(command, reply);
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//
+// A fixed-size, lock-free latency histogram in the style of HdrHistogram.
+// Values are recorded in microseconds into log-linear buckets: every power of
+// two is split into 64 linear sub-buckets, so any reported value is within
+// about 1.6% of the recorded one, from 1 microsecond up to about 12 days,
+// in under 20 KB.
+//
+
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // Record one latency measured with System.nanoTime
+    void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    // Record one value in microseconds
+    void record(long micros) {
+        long value = Math.min(micros, MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until our value or a larger one is stored
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    // in microseconds
+    long getMax() {
+        return max.get();
+    }
+
+    // in microseconds
+    double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    // return the value in microseconds that percentile percent of recordings are at or below
+    long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // Values below 2 * SUB_BUCKETS map to themselves; above that, each power of
+    // two [2^m, 2^(m+1)) is shifted down into [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    static int index(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+        return (int) (SUB_BUCKETS * shift + (value >>> shift));
+    }
+
+    // the largest value that lands in the same bucket as index
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index - (long) SUB_BUCKETS * shift;
+        return ((sub + 1) << shift) - 1;
+    }
+}
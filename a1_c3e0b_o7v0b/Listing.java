@@ -0,0 +1,27 @@
+import java.util.Collections;
+import java.util.List;
+
+//
+// A directory listing as parsed into RemoteFiles, together with the LIST
+// lines it was parsed from, so that a listing in a format ListingParser
+// doesn't know can still be shown as the server sent it.
+//
+
+class Listing {
+    private final List<RemoteFile> files;
+    private final List<String> lines; // null when the listing came from MLSD
+
+    Listing(List<RemoteFile> files, List<String> lines) {
+        this.files = Collections.unmodifiableList(files);
+        this.lines = lines == null ? null : Collections.unmodifiableList(lines);
+    }
+
+    List<RemoteFile> getFiles() {
+        return files;
+    }
+
+    // return the raw LIST output, null for an MLSD listing
+    List<String> getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//
+// Parsed directory listings kept for a short time, so that walking back
+// and forth between directories doesn't repeat PASV + LIST every time.
+// Entries are keyed by server, user and absolute directory, expire after the
+// TTL, and are dropped early by invalidate() whenever the directory is
+// written to. The least recently used directory goes first once the cache
+// holds maxDirectories listings. Safe for use by many sessions at once.
+//
+
+class ListingCache {
+    static final long DEFAULT_TTL_MILLIS = 30 * 1000;
+    static final int DEFAULT_MAX_DIRECTORIES = 1024;
+
+    private final long ttlNanos;
+    private final int maxDirectories;
+    private final Map<String, Entry> entries;
+
+    private static class Entry {
+        final Listing listing;
+        final long expires;
+
+        Entry(Listing listing, long expires) {
+            this.listing = listing;
+            this.expires = expires;
+        }
+    }
+
+    ListingCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_DIRECTORIES);
+    }
+
+    ListingCache(long ttlMillis, final int maxDirectories) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxDirectories = maxDirectories;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ListingCache.this.maxDirectories;
+            }
+        };
+    }
+
+    // return the cached listing, or null if there is none or it has expired
+    synchronized Listing get(String server, String directory) {
+        String key = key(server, directory);
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.expires > 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.listing;
+    }
+
+    synchronized void put(String server, String directory, Listing listing) {
+        entries.put(key(server, directory), new Entry(listing, System.nanoTime() + ttlNanos));
+    }
+
+    // Forget a directory after it has been written to
+    synchronized void invalidate(String server, String directory) {
+        entries.remove(key(server, directory));
+    }
+
+    // Forget every directory of a server
+    synchronized void invalidateAll(String server) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(server + "\n")) it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static String key(String server, String directory) {
+        return server + "\n" + directory;
+    }
+}
@@ -0,0 +1,198 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+//
+// Turns the lines of an MLSD or LIST data transfer into RemoteFiles.
+// MLSD (RFC 3659) is machine readable; for LIST only the common unix
+// "ls -l" layout is understood and other lines are skipped.
+// Times are taken as UTC, which is what MLSD uses and what most servers
+// print for LIST.
+//
+
+class ListingParser {
+    private static final String[] MONTHS = {
+            "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"
+    };
+
+    private ListingParser() {
+    }
+
+    static List<RemoteFile> parseMlsd(List<String> lines) {
+        List<RemoteFile> files = new ArrayList<RemoteFile>(lines.size());
+        for (String line : lines) {
+            RemoteFile file = parseMlsdLine(line);
+            if (file != null) files.add(file);
+        }
+        return files;
+    }
+
+    static List<RemoteFile> parseList(List<String> lines) {
+        List<RemoteFile> files = new ArrayList<RemoteFile>(lines.size());
+        long now = System.currentTimeMillis();
+        for (String line : lines) {
+            RemoteFile file = parseListLine(line, now);
+            if (file != null) files.add(file);
+        }
+        return files;
+    }
+
+    // Format: "fact=value;fact=value; name"
+    // return the entry, or null for the cdir/pdir entries and malformed lines
+    static RemoteFile parseMlsdLine(String line) {
+        int space = line.indexOf(' ');
+        if (space < 0) return null;
+        String name = line.substring(space + 1);
+        RemoteFile.Type type = RemoteFile.Type.OTHER;
+        long size = -1;
+        long modified = -1;
+        int start = 0;
+        while (start < space) {
+            int end = line.indexOf(';', start);
+            if (end < 0 || end > space) end = space;
+            int equals = line.indexOf('=', start);
+            if (equals > start && equals < end) {
+                String fact = line.substring(start, equals).toLowerCase(Locale.ROOT);
+                String value = line.substring(equals + 1, end);
+                if (fact.equals("type")) {
+                    String t = value.toLowerCase(Locale.ROOT);
+                    if (t.equals("cdir") || t.equals("pdir")) return null;
+                    if (t.equals("file")) type = RemoteFile.Type.FILE;
+                    else if (t.equals("dir")) type = RemoteFile.Type.DIRECTORY;
+                    else if (t.startsWith("os.unix=slink") || t.startsWith("os.unix=symlink")) type = RemoteFile.Type.LINK;
+                } else if (fact.equals("size")) {
+                    size = parseLong(value);
+                } else if (fact.equals("modify")) {
+                    modified = parseMlsdTime(value);
+                }
+            }
+            start = end + 1;
+        }
+        return new RemoteFile(name, type, size, modified);
+    }
+
+    // Format: "drwxr-xr-x 2 owner group 4096 Mar 07 12:34 name"
+    // The group column is optional and the time may be a year instead.
+    // return the entry, or null for "total" lines, "." and ".." and anything unrecognised
+    static RemoteFile parseListLine(String line, long now) {
+        if (line.isEmpty()) return null;
+        RemoteFile.Type type;
+        switch (line.charAt(0)) {
+            case '-':
+                type = RemoteFile.Type.FILE;
+                break;
+            case 'd':
+                type = RemoteFile.Type.DIRECTORY;
+                break;
+            case 'l':
+                type = RemoteFile.Type.LINK;
+                break;
+            case 'b':
+            case 'c':
+            case 'p':
+            case 's':
+                type = RemoteFile.Type.OTHER;
+                break;
+            default:
+                return null;
+        }
+        // token boundaries of the first fields, the name is the remainder
+        int[] starts = new int[9];
+        int[] ends = new int[9];
+        int count = 0;
+        int i = 0;
+        int n = line.length();
+        while (count < 9 && i < n) {
+            while (i < n && line.charAt(i) == ' ') i++;
+            if (i == n) break;
+            starts[count] = i;
+            while (i < n && line.charAt(i) != ' ') i++;
+            ends[count++] = i;
+        }
+        // the month is the first token from the fifth on that names one
+        int month = -1;
+        for (int k = 4; k < count - 2 && month < 0; k++) {
+            if (monthIndex(line, starts[k], ends[k]) >= 0) month = k;
+        }
+        if (month < 0 || month + 3 > count) return null;
+        long size = parseLong(line.substring(starts[month - 1], ends[month - 1]));
+        long modified = parseListTime(line, starts, ends, month, now);
+        int nameStart = ends[month + 2];
+        while (nameStart < n && line.charAt(nameStart) == ' ') nameStart++;
+        if (nameStart >= n) return null;
+        String name = line.substring(nameStart);
+        if (type == RemoteFile.Type.LINK) {
+            int arrow = name.indexOf(" -> ");
+            if (arrow >= 0) name = name.substring(0, arrow);
+        }
+        if (name.equals(".") || name.equals("..")) return null;
+        return new RemoteFile(name, type, size, modified);
+    }
+
+    // "Mar 07 12:34" is within the last year, "Mar 07 2016" gives the year
+    private static long parseListTime(String line, int[] starts, int[] ends, int month, long now) {
+        try {
+            int m = monthIndex(line, starts[month], ends[month]) + 1;
+            int day = Integer.parseInt(line.substring(starts[month + 1], ends[month + 1]));
+            String last = line.substring(starts[month + 2], ends[month + 2]);
+            int colon = last.indexOf(':');
+            if (colon < 0) {
+                return LocalDate.of(Integer.parseInt(last), m, day).atStartOfDay()
+                        .toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            int hour = Integer.parseInt(last.substring(0, colon));
+            int minute = Integer.parseInt(last.substring(colon + 1));
+            int year = LocalDateTime.ofEpochSecond(now / 1000, 0, ZoneOffset.UTC).getYear();
+            long time = LocalDateTime.of(year, m, day, hour, minute).toInstant(ZoneOffset.UTC).toEpochMilli();
+            // a date more than a day ahead belongs to last year
+            if (time > now + 24L * 60 * 60 * 1000) {
+                time = LocalDateTime.of(year - 1, m, day, hour, minute).toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            return time;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // Format: YYYYMMDDHHMMSS[.sss] in UTC
+    static long parseMlsdTime(String value) {
+        try {
+            LocalDateTime time = LocalDateTime.of(
+                    Integer.parseInt(value.substring(0, 4)),
+                    Integer.parseInt(value.substring(4, 6)),
+                    Integer.parseInt(value.substring(6, 8)),
+                    Integer.parseInt(value.substring(8, 10)),
+                    Integer.parseInt(value.substring(10, 12)),
+                    Integer.parseInt(value.substring(12, 14)));
+            long millis = time.toInstant(ZoneOffset.UTC).toEpochMilli();
+            if (value.length() > 15 && value.charAt(14) == '.') {
+                String fraction = (value.substring(15) + "00").substring(0, 3);
+                millis += Integer.parseInt(fraction);
+            }
+            return millis;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // return 0-11 for a three letter month name, -1 otherwise
+    private static int monthIndex(String line, int start, int end) {
+        if (end - start != 3) return -1;
+        String token = line.substring(start, end).toLowerCase(Locale.ROOT);
+        for (int m = 0; m < MONTHS.length; m++) {
+            if (MONTHS[m].equals(token)) return m;
+        }
+        return -1;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
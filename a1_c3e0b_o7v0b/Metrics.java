@@ -0,0 +1,143 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Latency and throughput figures collected by FtpSessions, per server.
+// Every command's round trip is recorded under its verb (USER, PASV, RETR, ...)
+// next to the phases that aren't single commands:
+//   connect      - TCP connect plus the greeting
+//   login        - USER and PASS together
+//   data-connect - connecting to the EPSV or PASV address
+//   first-byte   - from sending RETR to the first byte on the data connection
+//   transfer     - from the first byte to the end of the data
+// Safe for use by many sessions at once; sessions without a Metrics record nothing.
+//
+
+class Metrics {
+    static final String CONNECT = "connect";
+    static final String LOGIN = "login";
+    static final String DATA_CONNECT = "data-connect";
+    static final String FIRST_BYTE = "first-byte";
+    static final String TRANSFER = "transfer";
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
+
+    // Everything recorded for one host:port
+    private static class Server {
+        final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder transfers = new LongAdder();
+        final LongAdder transferNanos = new LongAdder();
+
+        LatencyHistogram histogram(String name) {
+            LatencyHistogram histogram = latencies.get(name);
+            if (histogram == null) {
+                LatencyHistogram created = new LatencyHistogram();
+                histogram = latencies.putIfAbsent(name, created);
+                if (histogram == null) histogram = created;
+            }
+            return histogram;
+        }
+    }
+
+    void recordLatency(String server, String name, long nanos) {
+        server(server).histogram(name).recordNanos(nanos);
+    }
+
+    // One finished data transfer of bytes that took nanos after its first byte
+    void recordTransfer(String server, long bytes, long nanos) {
+        Server s = server(server);
+        s.histogram(TRANSFER).recordNanos(nanos);
+        s.bytes.add(bytes);
+        s.transfers.increment();
+        s.transferNanos.add(nanos);
+    }
+
+    void reset() {
+        servers.clear();
+    }
+
+    // Print one line per server and operation, latencies in milliseconds
+    void print(PrintStream out) {
+        out.println(String.format("%-22s %-12s %7s %9s %9s %9s %9s %9s",
+                "server", "operation", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, Server> entry : new TreeMap<String, Server>(servers).entrySet()) {
+            Server s = entry.getValue();
+            for (Map.Entry<String, LatencyHistogram> h : new TreeMap<String, LatencyHistogram>(s.latencies).entrySet()) {
+                LatencyHistogram histogram = h.getValue();
+                out.println(String.format("%-22s %-12s %7d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                        entry.getKey(), h.getKey(), histogram.getCount(), histogram.getMean() / 1000.0,
+                        histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                        histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+            }
+            long transfers = s.transfers.sum();
+            if (transfers > 0) {
+                out.println(entry.getKey() + " " + transfers + " transfers, "
+                        + TransferEngine.report(s.bytes.sum(), s.transferNanos.sum()));
+            }
+        }
+    }
+
+    // return the figures as one JSON object, latencies in microseconds
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\"servers\":{");
+        boolean firstServer = true;
+        for (Map.Entry<String, Server> entry : new TreeMap<String, Server>(servers).entrySet()) {
+            Server s = entry.getValue();
+            if (!firstServer) json.append(',');
+            firstServer = false;
+            appendString(json, entry.getKey());
+            json.append(":{\"bytes\":").append(s.bytes.sum())
+                    .append(",\"transfers\":").append(s.transfers.sum())
+                    .append(",\"transfer_nanos\":").append(s.transferNanos.sum())
+                    .append(",\"latency_us\":{");
+            boolean firstName = true;
+            for (Map.Entry<String, LatencyHistogram> h : new TreeMap<String, LatencyHistogram>(s.latencies).entrySet()) {
+                LatencyHistogram histogram = h.getValue();
+                if (!firstName) json.append(',');
+                firstName = false;
+                appendString(json, h.getKey());
+                json.append(":{\"count\":").append(histogram.getCount())
+                        .append(",\"mean\":").append(Math.round(histogram.getMean()))
+                        .append(",\"max\":").append(histogram.getMax());
+                for (double p : PERCENTILES) {
+                    json.append(",\"p").append((int) p).append("\":").append(histogram.getValueAtPercentile(p));
+                }
+                json.append('}');
+            }
+            json.append("}}");
+        }
+        return json.append("}}").toString();
+    }
+
+    private Server server(String server) {
+        Server s = servers.get(server);
+        if (s == null) {
+            Server created = new Server();
+            s = servers.putIfAbsent(server, created);
+            if (s == null) s = created;
+        }
+        return s;
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// Implementation of 'mirror REMOTE_DIR LOCAL_DIR': walks the remote tree and
+// downloads every file that is missing locally or whose size or modification
+// time differs. Every directory and every download is a task in a
+// work-stealing ForkJoinPool, so listings and transfers of different
+// directories overlap. Each task borrows a session for just its own CWD +
+// listing or RETR, so they spread across the sessions of the pool.
+// Downloaded files get the remote modification time, so an unchanged file
+// is skipped on the next run.
+//
+
+class Mirror {
+    static final int DEFAULT_PARALLELISM = 4;
+    // Local and remote times closer than this count as equal
+    static final long TIME_TOLERANCE_MILLIS = 1000;
+
+    private final SessionFactory sessions;
+    private final int parallelism;
+    private final PrintStream out;
+
+    private final AtomicInteger directories = new AtomicInteger();
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    Mirror(SessionFactory sessions, int parallelism, PrintStream out) {
+        this.sessions = sessions;
+        this.parallelism = parallelism;
+        this.out = out;
+    }
+
+    // Mirror the absolute remote directory into the local one
+    // return the number of files that couldn't be listed or downloaded
+    int run(String remote, Path local) {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(remote, local));
+        } finally {
+            pool.shutdown();
+        }
+        out.println(directories.get() + " directories, " + downloaded.get() + " downloaded, "
+                + skipped.get() + " up to date, " + failed.get() + " failed, "
+                + TransferEngine.report(bytes.get(), System.nanoTime() - start));
+        return failed.get();
+    }
+
+    // true if the local file is missing or differs from the remote entry
+    static boolean needsDownload(RemoteFile file, Path local) {
+        try {
+            if (!Files.isRegularFile(local)) return true;
+            if (file.getSize() >= 0 && Files.size(local) != file.getSize()) return true;
+            if (file.getModified() >= 0) {
+                long localTime = Files.getLastModifiedTime(local).toMillis();
+                return Math.abs(localTime - file.getModified()) > TIME_TOLERANCE_MILLIS;
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // Borrow a session and move it to the directory unless it is there already
+    private FtpSession sessionIn(String remoteDir) throws IOException {
+        FtpSession session = sessions.open();
+        try {
+            if (!remoteDir.equals(session.getDirectory())) {
+                session.changeDirectory(remoteDir);
+            }
+            return session;
+        } catch (FtpException e) {
+            sessions.release(session);
+            throw e;
+        } catch (IOException e) {
+            sessions.discard(session);
+            throw e;
+        }
+    }
+
+    // Hand a session back, unless its control connection has failed
+    private void finish(FtpSession session, IOException failure) {
+        if (failure instanceof ControlConnectionException) {
+            sessions.discard(session);
+        } else {
+            sessions.release(session);
+        }
+    }
+
+    private static String child(String remoteDir, String name) {
+        return remoteDir.endsWith("/") ? remoteDir + name : remoteDir + "/" + name;
+    }
+
+    // List one remote directory and fork a task for every entry that needs work
+    private class DirectoryTask extends RecursiveAction {
+        private final String remote;
+        private final Path local;
+
+        DirectoryTask(String remote, Path local) {
+            this.remote = remote;
+            this.local = local;
+        }
+
+        @Override
+        protected void compute() {
+            List<RemoteFile> files;
+            try {
+                Files.createDirectories(local);
+                FtpSession session = sessionIn(remote);
+                IOException failure = null;
+                try {
+                    files = session.listFiles();
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    finish(session, failure);
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                out.println(remote + ": " + e.getMessage());
+                return;
+            }
+            directories.incrementAndGet();
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (RemoteFile file : files) {
+                if (!file.isDirectory() && !file.isFile()) continue;
+                if (file.getName().equals(".") || file.getName().equals("..")) continue;
+                // the name comes from the server, it must not lead out of the local directory
+                Path target = RemoteFile.isSafeName(file.getName()) ? local.resolve(file.getName()) : null;
+                if (target == null || !target.normalize().startsWith(local.normalize())) {
+                    failed.incrementAndGet();
+                    out.println(child(remote, file.getName()) + ": 0x38E Access to local file " + file.getName()
+                            + " denied");
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    tasks.add(new DirectoryTask(child(remote, file.getName()), target));
+                } else if (file.isFile()) {
+                    if (needsDownload(file, target)) {
+                        tasks.add(new FileTask(remote, file, target));
+                    } else {
+                        skipped.incrementAndGet();
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // Download one file and give it the remote modification time
+    private class FileTask extends RecursiveAction {
+        private final String remoteDir;
+        private final RemoteFile file;
+        private final Path local;
+
+        FileTask(String remoteDir, RemoteFile file, Path local) {
+            this.remoteDir = remoteDir;
+            this.file = file;
+            this.local = local;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                FtpSession session = sessionIn(remoteDir);
+                IOException failure = null;
+                try {
+                    session.binary();
+                    bytes.addAndGet(session.retrieve(file.getName(), local.toString()));
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    finish(session, failure);
+                }
+                if (file.getModified() >= 0) {
+                    Files.setLastModifiedTime(local, FileTime.fromMillis(file.getModified()));
+                }
+                downloaded.incrementAndGet();
+                out.println(child(remoteDir, file.getName()));
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                out.println(child(remoteDir, file.getName()) + ": " + e.getMessage());
+            }
+        }
+    }
+}
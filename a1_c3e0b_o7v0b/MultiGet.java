@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+//
+// Implementation of 'mget GLOB': expands the glob against a listing of the
+// current remote directory and downloads the matches concurrently.
+// At most 'parallelism' extra control connections are used, each one logged
+// in with the credentials already given to the REPL, and each works through a
+// shared queue of file names.
+// With a SelectorEngine ('mget -e N GLOB') there are no worker threads: each
+// file is a download of its own on the engine's event loops, with at most
+// 'parallelism' of them in flight. That suits directories of many small
+// files, where a worker would spend most of its time waiting for replies.
+//
+
+class MultiGet {
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private final SessionFactory sessions;
+    private final int parallelism;
+    private final PrintStream out;
+
+    MultiGet(SessionFactory sessions, int parallelism, PrintStream out) {
+        this.sessions = sessions;
+        this.parallelism = parallelism;
+        this.out = out;
+    }
+
+    // Download every regular file in the directory whose name matches glob
+    // Names that could write outside the local working directory are skipped.
+    // return the number of files downloaded successfully
+    int run(String glob) throws IOException, InterruptedException {
+        Queue<String> pending = new ConcurrentLinkedQueue<String>();
+        FtpSession first = sessions.open();
+        try {
+            match(first, glob, pending);
+        } catch (FtpException e) {
+            sessions.release(first);
+            throw e;
+        } catch (IOException e) {
+            sessions.discard(first);
+            throw e;
+        }
+        if (pending.isEmpty()) {
+            sessions.release(first);
+            out.println("No remote files match " + glob);
+            return 0;
+        }
+
+        int total = pending.size();
+        int workers = Math.min(parallelism, total);
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        pool.execute(new Worker(first, pending, done, bytes));
+        for (int i = 1; i < workers; i++) {
+            pool.execute(new Worker(null, pending, done, bytes));
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        out.println(done.get() + " of " + total + " files, " + TransferEngine.report(bytes.get(), System.nanoTime() - start));
+        return done.get();
+    }
+
+    // As run(glob), but with every download driven by engine
+    // return the number of files downloaded successfully
+    int run(String glob, SelectorEngine engine) throws IOException, InterruptedException {
+        Queue<String> pending = new ConcurrentLinkedQueue<String>();
+        FtpSession first = sessions.open();
+        try {
+            match(first, glob, pending);
+        } catch (FtpException e) {
+            sessions.release(first);
+            throw e;
+        } catch (IOException e) {
+            sessions.discard(first);
+            throw e;
+        }
+        sessions.release(first);
+        if (pending.isEmpty()) {
+            out.println("No remote files match " + glob);
+            return 0;
+        }
+
+        int total = pending.size();
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+        for (String name : pending) {
+            inFlight.acquire();
+            long started = System.nanoTime();
+            engine.retrieve(sessions.getHost(), sessions.getPort(), sessions.getUser(), sessions.getPassword(),
+                    sessions.getDirectory(), name, Paths.get(name)).whenComplete((n, e) -> {
+                if (e == null) {
+                    bytes.addAndGet(n);
+                    done.incrementAndGet();
+                    out.println(name + ": " + TransferEngine.report(n, System.nanoTime() - started));
+                } else {
+                    out.println(name + ": " + describe(e instanceof CompletionException ? e.getCause() : e));
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(parallelism);
+        out.println(done.get() + " of " + total + " files, " + TransferEngine.report(bytes.get(), System.nanoTime() - start));
+        return done.get();
+    }
+
+    // Add the regular files of the session's directory that match glob to pending
+    private void match(FtpSession session, String glob, Queue<String> pending) throws IOException {
+        Pattern pattern = globToPattern(glob);
+        for (RemoteFile file : session.listFiles()) {
+            if (!file.isFile() || !pattern.matcher(file.getName()).matches()) continue;
+            if (RemoteFile.isSafeName(file.getName())) {
+                pending.add(file.getName());
+            } else {
+                out.println(file.getName() + ": 0x38E Access to local file " + file.getName() + " denied");
+            }
+        }
+    }
+
+    // return the message a failed SelectorEngine download is reported with
+    private String describe(Throwable e) {
+        if (e instanceof FtpException) {
+            return e.getMessage();
+        } else if (e instanceof ControlConnectionException) {
+            return "0xFFFD Control connection I/O error, closing control connection.";
+        } else {
+            return "0x3A7 Data transfer connection I/O error, closing data connection.";
+        }
+    }
+
+    // One control connection draining the shared queue
+    private class Worker implements Runnable {
+        private FtpSession session;
+        private final Queue<String> pending;
+        private final AtomicInteger done;
+        private final AtomicLong bytes;
+
+        Worker(FtpSession session, Queue<String> pending, AtomicInteger done, AtomicLong bytes) {
+            this.session = session;
+            this.pending = pending;
+            this.done = done;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (session == null) {
+                    session = sessions.open();
+                }
+            } catch (IOException e) {
+                out.println("0xFFFC Control connection to " + sessions.getHost() + " on port " + sessions.getPort() + " failed to open.");
+                return;
+            }
+            try {
+                session.binary(); // a pooled session may have been left in ASCII
+            } catch (FtpException e) {
+                out.println(e.getMessage());
+                sessions.release(session);
+                return;
+            } catch (IOException e) {
+                out.println("0xFFFD Control connection I/O error, closing control connection.");
+                sessions.discard(session);
+                return;
+            }
+            String name;
+            while ((name = pending.poll()) != null) {
+                try {
+                    long start = System.nanoTime();
+                    long n = session.retrieve(name, name);
+                    bytes.addAndGet(n);
+                    done.incrementAndGet();
+                    out.println(name + ": " + TransferEngine.report(n, System.nanoTime() - start));
+                } catch (FtpException e) {
+                    out.println(name + ": " + e.getMessage());
+                } catch (ControlConnectionException e) {
+                    out.println(name + ": 0xFFFD Control connection I/O error, closing control connection.");
+                    sessions.discard(session);
+                    return;
+                } catch (IOException e) {
+                    out.println(name + ": 0x3A7 Data transfer connection I/O error, closing data connection.");
+                }
+            }
+            sessions.release(session);
+        }
+    }
+
+    // Translate a shell glob with '*', '?' and '[...]' into a regular expression
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') inClass = false;
+                if (c == '\\') regex.append('\\');
+                regex.append(c);
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[') {
+                inClass = true;
+                regex.append('[');
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                    regex.append('^');
+                    i++;
+                }
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
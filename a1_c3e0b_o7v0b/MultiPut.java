@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+//
+// Implementation of 'mput GLOB': expands the glob against the local working
+// directory and uploads the matches concurrently into the current remote
+// directory, the mirror image of MultiGet. At most 'parallelism' extra
+// control connections are used, each working through a shared queue.
+//
+
+class MultiPut {
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private final SessionFactory sessions;
+    private final int parallelism;
+    private final PrintStream out;
+
+    MultiPut(SessionFactory sessions, int parallelism, PrintStream out) {
+        this.sessions = sessions;
+        this.parallelism = parallelism;
+        this.out = out;
+    }
+
+    // Upload every regular file in the local directory whose name matches glob
+    // return the number of files uploaded successfully
+    int run(Path directory, String glob) throws IOException, InterruptedException {
+        Pattern pattern = MultiGet.globToPattern(glob);
+        Queue<Path> pending = new ConcurrentLinkedQueue<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && pattern.matcher(file.getFileName().toString()).matches()) {
+                    pending.add(file);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            out.println("No local files match " + glob);
+            return 0;
+        }
+
+        int total = pending.size();
+        int workers = Math.min(parallelism, total);
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            pool.execute(new Worker(pending, done, bytes));
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        out.println(done.get() + " of " + total + " files, "
+                + TransferEngine.report(bytes.get(), System.nanoTime() - start, "sent"));
+        return done.get();
+    }
+
+    // One control connection draining the shared queue
+    private class Worker implements Runnable {
+        private final Queue<Path> pending;
+        private final AtomicInteger done;
+        private final AtomicLong bytes;
+
+        Worker(Queue<Path> pending, AtomicInteger done, AtomicLong bytes) {
+            this.pending = pending;
+            this.done = done;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            FtpSession session;
+            try {
+                session = sessions.open();
+            } catch (IOException e) {
+                out.println("0xFFFC Control connection to " + sessions.getHost() + " on port " + sessions.getPort() + " failed to open.");
+                return;
+            }
+            Path file;
+            while ((file = pending.poll()) != null) {
+                String name = file.getFileName().toString();
+                try {
+                    long start = System.nanoTime();
+                    session.binary();
+                    long n = session.store(file.toString(), name);
+                    bytes.addAndGet(n);
+                    done.incrementAndGet();
+                    out.println(name + ": " + TransferEngine.report(n, System.nanoTime() - start, "sent"));
+                } catch (FtpException e) {
+                    out.println(name + ": " + e.getMessage());
+                } catch (ControlConnectionException e) {
+                    out.println(name + ": 0xFFFD Control connection I/O error, closing control connection.");
+                    sessions.discard(session);
+                    return;
+                } catch (FileSystemException e) {
+                    out.println(name + ": 0x38E Access to local file " + file + " denied");
+                } catch (IOException e) {
+                    out.println(name + ": 0x3A7 Data transfer connection I/O error, closing data connection.");
+                }
+            }
+            sessions.release(session);
+        }
+    }
+}
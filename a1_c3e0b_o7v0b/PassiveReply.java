@@ -0,0 +1,106 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+//
+// Reads the data connection's address out of a PASV (227) or EPSV (229) reply.
+// Both parsers walk the line once and create no objects: a PASV address and
+// port come back packed into a long, and an EPSV reply only holds a port, the
+// address being the control connection's (RFC 2428).
+//
+
+final class PassiveReply {
+    private PassiveReply() {
+    }
+
+    // Format: "227 Entering Passive Mode (a,b,c,d,e,f)"
+    // The text and brackets vary between servers, so the numbers are read from
+    // the first digit after the code.
+    // return a.b.c.d in bits 16 to 47 and the port e * 256 + f in bits 0 to 15, -1 if malformed
+    static long parsePasv(CharSequence line) {
+        int n = line.length();
+        int i = 4;
+        while (i < n && !isDigit(line.charAt(i))) i++;
+        long packed = 0;
+        for (int field = 0; field < 6; field++) {
+            if (field > 0) {
+                if (i == n || line.charAt(i) != ',') return -1;
+                i++;
+                while (i < n && line.charAt(i) == ' ') i++;
+            }
+            int value = 0;
+            int digits = 0;
+            while (i < n && digits < 3 && isDigit(line.charAt(i))) {
+                value = value * 10 + line.charAt(i++) - '0';
+                digits++;
+            }
+            if (digits == 0 || value > 255) return -1;
+            packed = packed << 8 | value;
+        }
+        return packed;
+    }
+
+    // the IPv4 address of a parsePasv() result
+    static int address(long pasv) {
+        return (int) (pasv >>> 16);
+    }
+
+    // the port of a parsePasv() result
+    static int port(long pasv) {
+        return (int) (pasv & 0xffff);
+    }
+
+    // Format: "229 Entering Extended Passive Mode (|||6446|)"
+    // The character after '(' delimits the fields; the protocol and address
+    // fields are left empty by the server.
+    // return the port, -1 if malformed
+    static int parseEpsv(CharSequence line) {
+        int n = line.length();
+        int i = 4;
+        while (i < n && line.charAt(i) != '(') i++;
+        if (i + 4 >= n) return -1;
+        char delimiter = line.charAt(i + 1);
+        if (line.charAt(i + 2) != delimiter || line.charAt(i + 3) != delimiter) return -1;
+        i += 4;
+        int port = 0;
+        int digits = 0;
+        while (i < n && digits < 5 && isDigit(line.charAt(i))) {
+            port = port * 10 + line.charAt(i++) - '0';
+            digits++;
+        }
+        if (digits == 0 || port > 65535 || i == n || line.charAt(i) != delimiter) return -1;
+        return port;
+    }
+
+    // return the address to open a PASV data connection to: the one in the
+    // reply, unless it can't be reached the way the control connection is.
+    // That is 0.0.0.0, any address when the control connection is IPv6, and
+    // a private, loopback or link-local address from a server reached on a
+    // public one, as from a server behind NAT; peer is used for those instead.
+    static InetAddress dataAddress(long pasv, InetAddress peer) throws UnknownHostException {
+        int address = address(pasv);
+        if (address == 0 || !(peer instanceof Inet4Address)) return peer;
+        int server = toInt(peer.getAddress());
+        if (address == server || (isLocal(address) && !isLocal(server))) return peer;
+        return InetAddress.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+    }
+
+    // true for 10/8, 172.16/12, 192.168/16, 100.64/10 (carrier NAT), 127/8 and 169.254/16
+    private static boolean isLocal(int address) {
+        return (address >>> 24) == 10
+                || (address >>> 20) == 0xac1
+                || (address >>> 16) == 0xc0a8
+                || (address >>> 22) == (100 << 2 | 1)
+                || (address >>> 24) == 127
+                || (address >>> 16) == 0xa9fe;
+    }
+
+    private static int toInt(byte[] b) {
+        return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,68 @@
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+//
+// One entry of a remote directory listing
+//
+
+class RemoteFile {
+    enum Type { FILE, DIRECTORY, LINK, OTHER }
+
+    private final String name;
+    private final Type type;
+    private final long size;     // -1 if the server didn't say
+    private final long modified; // milliseconds since the epoch, -1 if unknown
+
+    RemoteFile(String name, Type type, long size, long modified) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getModified() {
+        return modified;
+    }
+
+    boolean isFile() {
+        return type == Type.FILE;
+    }
+
+    boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    // Names come from the server, so one is only used as a local file name if
+    // it can't point anywhere but into the directory it is resolved against
+    // return true if name is not empty, '.' or '..', has no '/' or '\' and is not absolute
+    static boolean isSafeName(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) return false;
+        if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0) return false;
+        try {
+            return !Paths.get(name).isAbsolute();
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    // One line in the format printed by the 'dir' command
+    @Override
+    public String toString() {
+        char kind = type == Type.DIRECTORY ? 'd' : type == Type.LINK ? 'l' : type == Type.FILE ? '-' : '?';
+        String time = modified < 0 ? "-" : Instant.ofEpochMilli(modified).toString();
+        return String.format("%c %12d %-24s %s", kind, size, time, name);
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//
+// Implementation of 'get -s N REMOTE': splits one remote file into N byte
+// ranges and fetches every range on its own control/data connection pair
+// with REST + RETR. All ranges are written with positional writes into a
+// local file that is sized up front. As the ranges that never arrived would
+// read as zeros in a file of the right length, which 'get -c' would take for
+// a complete one, the local file is deleted if any range fails.
+//
+
+class SegmentedGet {
+    // Ranges smaller than this aren't worth a connection of their own
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final SessionFactory sessions;
+    private final int segments;
+    private final PrintStream out;
+
+    SegmentedGet(SessionFactory sessions, int segments, PrintStream out) {
+        this.sessions = sessions;
+        this.segments = segments;
+        this.out = out;
+    }
+
+    // Download remote into the local file of the same name
+    // return the number of bytes written
+    long run(String remote) throws IOException, InterruptedException {
+        return run(remote, Paths.get(remote));
+    }
+
+    // Download remote into local
+    // return the number of bytes written
+    long run(String remote, Path local) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        FtpSession first = sessions.open();
+        boolean handedOver = false; // segment 0 gets rid of first once it has it
+        boolean opened = false;     // the local file has been truncated and presized
+        boolean complete = false;
+        IOException failure = null;
+        ExecutorService pool = null;
+        try {
+            first.binary(); // some servers refuse SIZE in ASCII mode
+            long size = first.size(remote);
+            int count = (int) Math.max(1, Math.min(segments, size / MIN_SEGMENT_SIZE));
+            long segmentSize = size / count;
+
+            pool = Executors.newFixedThreadPool(count);
+            try (FileChannel file = FileChannel.open(local, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                opened = true;
+                presize(file, size);
+                List<Future<Long>> results = new ArrayList<Future<Long>>(count);
+                for (int i = 0; i < count; i++) {
+                    long offset = i * segmentSize;
+                    long length = i == count - 1 ? size - offset : segmentSize;
+                    results.add(pool.submit(new Segment(i == 0 ? first : null, remote, file, offset, length)));
+                    handedOver = true;
+                }
+                long total = 0;
+                for (Future<Long> result : results) {
+                    total += result.get();
+                }
+                if (total != size) {
+                    throw new IOException("Received " + total + " of " + size + " bytes");
+                }
+                complete = true;
+                out.println(count + " segments, " + TransferEngine.report(total, System.nanoTime() - start));
+                return total;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (opened && !complete) {
+                // segments still running fail on the closed channel
+                Files.deleteIfExists(local);
+            }
+            if (!handedOver) {
+                if (failure instanceof ControlConnectionException) {
+                    sessions.discard(first);
+                } else {
+                    sessions.release(first);
+                }
+            }
+        }
+    }
+
+    // Extend the file to its final length so every segment writes inside it
+    private static void presize(FileChannel file, long size) throws IOException {
+        if (size > 0) {
+            file.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+    }
+
+    // One byte range fetched on its own session
+    private class Segment implements Callable<Long> {
+        private FtpSession session;
+        private final String remote;
+        private final FileChannel file;
+        private final long offset;
+        private final long length;
+
+        Segment(FtpSession session, String remote, FileChannel file, long offset, long length) {
+            this.session = session;
+            this.remote = remote;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            if (session == null) {
+                session = sessions.open();
+            }
+            // a range that stops short of the end of the file leaves the server
+            // to answer a dropped transfer in its own way, so the session isn't reused
+            long n;
+            try {
+                session.binary();
+                n = session.retrieve(remote, file, offset, length);
+            } finally {
+                sessions.discard(session);
+            }
+            if (n != length) {
+                throw new IOException("Segment at " + offset + " ended after " + n + " of " + length + " bytes");
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,562 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Downloads files from many servers at once without a thread per connection.
+// Each download is a small state machine driven by non-blocking control and
+// data channels:
+//   connect, 220, USER, 331, PASS, 230, [CWD, 250,] TYPE I, 200, EPSV, 229,
+//   data connect, RETR, 150, data until end of stream and 226, QUIT
+// As in FtpSession.openPassive, PASV and 227 take the place of EPSV and 229
+// when the server refuses EPSV, answers it without a port, or its data
+// connection can't be opened. A fixed set of event-loop threads, each with
+// its own Selector, runs every state machine assigned to it.
+// The outcome of a download is the same as FtpSession.retrieve: the local
+// file is created only after the server has accepted the RETR, and failures
+// are the same FtpException, ControlConnectionException and
+// DataConnectionException. A connection that doesn't open within
+// CONNECT_TIMEOUT, or a server that sends nothing for REPLY_TIMEOUT, fails
+// the download with a SocketTimeoutException as cause.
+//
+
+class SelectorEngine implements Closeable {
+    static final int DEFAULT_THREADS = 2;
+    // In milliseconds
+    static final long CONNECT_TIMEOUT = 15000;
+    static final long REPLY_TIMEOUT = 60000;
+    // How often each loop looks for downloads past their deadline
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    SelectorEngine() throws IOException {
+        this(DEFAULT_THREADS);
+    }
+
+    SelectorEngine(int threads) throws IOException {
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], "ftp-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Log in to host:port (anonymously when user is null), change to directory
+    // unless it is null, and download remote into local
+    // return a future with the number of bytes written
+    CompletableFuture<Long> retrieve(String host, int port, String user, String password, String directory,
+                                     String remote, Path local) {
+        Job job = new Job(host, port, user, password, directory, remote, local);
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].submit(job);
+        return job.future;
+    }
+
+    // Stop the event loops; downloads still in progress fail
+    @Override
+    public void close() {
+        for (Loop loop : loops) {
+            loop.close();
+        }
+    }
+
+    // One thread, one Selector, and the state machines registered with it
+    private static class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Job> incoming = new ConcurrentLinkedQueue<Job>();
+        // read buffer shared by every channel of this loop
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(TransferEngine.BUFFER_SIZE);
+        private volatile boolean closed = false;
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void submit(Job job) {
+            if (closed) {
+                job.future.completeExceptionally(new IOException("Selector engine is closed"));
+                return;
+            }
+            incoming.add(job);
+            selector.wakeup();
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextCheck = System.nanoTime() + TIMEOUT_CHECK_INTERVAL * 1000000L;
+            try {
+                while (!closed) {
+                    selector.select(TIMEOUT_CHECK_INTERVAL);
+                    Job job;
+                    while ((job = incoming.poll()) != null) {
+                        job.start(this);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        job = (Job) key.attachment();
+                        try {
+                            job.handle(key);
+                        } catch (CancelledKeyException e) {
+                            // the job finished while this key was pending
+                        } catch (IOException e) {
+                            job.fail(e);
+                        } catch (RuntimeException e) {
+                            // a bug or an unexpected reply takes down this download, not the loop
+                            job.fail(new IOException(e));
+                        }
+                    }
+                    long now = System.nanoTime();
+                    if (now - nextCheck >= 0) {
+                        expire(now);
+                        nextCheck = now + TIMEOUT_CHECK_INTERVAL * 1000000L;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+//                e.printStackTrace();
+            } finally {
+                // submit() fails anything that comes after this
+                closed = true;
+                IOException closing = new IOException("Selector engine is closed");
+                for (SelectionKey key : selector.keys()) {
+                    ((Job) key.attachment()).fail(closing);
+                }
+                Job job;
+                while ((job = incoming.poll()) != null) {
+                    job.fail(closing);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+//                    e.printStackTrace();
+                }
+            }
+        }
+
+        // Fail the downloads that have waited past their deadline
+        private void expire(long now) {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                Job job = (Job) key.attachment();
+                if (key.isValid() && now - job.deadline > 0) {
+                    job.timeOut();
+                }
+            }
+        }
+    }
+
+    private enum State { GREETING, USER, PASS, CWD, TYPE, EPSV, PASV, DATA_CONNECT, RETR, TRANSFER, QUIT }
+
+    // The state machine of one download
+    private static class Job {
+        final CompletableFuture<Long> future = new CompletableFuture<Long>();
+        private final String host;
+        private final int port;
+        private final String user;
+        private final String password;
+        private final String directory;
+        private final String remote;
+        private final Path local;
+
+        private Loop loop;
+        private State state = State.GREETING;
+        private String command = "connect"; // the command the next reply answers
+        private final Replies replies = new Replies();
+        private final Queue<ByteBuffer> unsent = new ArrayDeque<ByteBuffer>();
+
+        private SocketChannel control;
+        private SelectionKey controlKey;
+        private String dataHost;
+        private int dataPort;
+        private SocketChannel data;
+        private SelectionKey dataKey;
+        private FileChannel out;
+        private long position = 0;
+        private boolean endOfData = false;
+        private boolean transferComplete = false;
+        private boolean extendedPassive = true; // false once EPSV has let this download down
+        private long deadline; // System.nanoTime by which something must happen
+
+        Job(String host, int port, String user, String password, String directory, String remote, Path local) {
+            this.host = host;
+            this.port = port;
+            this.user = user;
+            this.password = password;
+            this.directory = directory;
+            this.remote = remote;
+            this.local = local;
+        }
+
+        // Begin connecting, on the loop's thread
+        void start(Loop loop) {
+            this.loop = loop;
+            setDeadline(CONNECT_TIMEOUT);
+            try {
+                control = SocketChannel.open();
+                control.configureBlocking(false);
+                boolean connected = control.connect(new InetSocketAddress(host, port));
+                controlKey = control.register(loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                fail(new ControlConnectionException(e));
+            } catch (RuntimeException e) {
+                // an unresolved or unsupported address
+                fail(new ControlConnectionException(new IOException(e)));
+            }
+        }
+
+        // Give the next step timeoutMillis from now
+        private void setDeadline(long timeoutMillis) {
+            deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        }
+
+        // Fail the download for the step it was waiting on, or try PASV when
+        // that was an EPSV data connection
+        void timeOut() {
+            if (state == State.DATA_CONNECT) {
+                try {
+                    dataFailed(new SocketTimeoutException("Connect timed out"));
+                } catch (IOException e) {
+                    fail(e);
+                }
+            } else if (!control.isConnected()) {
+                fail(new ControlConnectionException(new SocketTimeoutException("Connect timed out")));
+            } else {
+                fail(new ControlConnectionException(new SocketTimeoutException("No reply to " + command)));
+            }
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (key == controlKey) {
+                if (key.isConnectable()) {
+                    try {
+                        control.finishConnect();
+                    } catch (IOException e) {
+                        throw new ControlConnectionException(e);
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    setDeadline(REPLY_TIMEOUT);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readControl();
+                }
+            } else {
+                if (key.isConnectable()) {
+                    try {
+                        data.finishConnect();
+                    } catch (IOException e) {
+                        dataFailed(e);
+                        return;
+                    }
+                    // nothing is read until the server has answered the RETR
+                    key.interestOps(0);
+                    setDeadline(REPLY_TIMEOUT);
+                    state = State.RETR;
+                    send("RETR " + remote);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readData();
+                }
+            }
+        }
+
+        private void readControl() throws IOException {
+            ByteBuffer buffer = loop.buffer;
+            buffer.clear();
+            int n;
+            try {
+                n = control.read(buffer);
+            } catch (IOException e) {
+                throw new ControlConnectionException(e);
+            }
+            if (n < 0) {
+                if (state == State.QUIT) {
+                    finish();
+                    return;
+                }
+                throw new ControlConnectionException("Connection closed by server");
+            }
+            setDeadline(REPLY_TIMEOUT);
+            buffer.flip();
+            replies.feed(buffer);
+            FtpReply reply;
+            while (control.isOpen() && (reply = replies.poll()) != null) {
+                onReply(reply);
+            }
+        }
+
+        private void readData() throws IOException {
+            ByteBuffer buffer = loop.buffer;
+            buffer.clear();
+            int n = data.read(buffer);
+            if (n < 0) {
+                data.close();
+                endOfData = true;
+                completeIfDone();
+                return;
+            }
+            setDeadline(REPLY_TIMEOUT);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+
+        private void onReply(FtpReply reply) throws IOException {
+            switch (state) {
+                case GREETING:
+                    expect(reply, 2);
+                    if (user != null) {
+                        state = State.USER;
+                        send("USER " + user);
+                    } else {
+                        loggedIn();
+                    }
+                    break;
+                case USER:
+                    if (reply.isIntermediate()) {
+                        state = State.PASS;
+                        send("PASS " + password);
+                    } else {
+                        expect(reply, 2);
+                        loggedIn();
+                    }
+                    break;
+                case PASS:
+                    expect(reply, 2);
+                    loggedIn();
+                    break;
+                case CWD:
+                    expect(reply, 2);
+                    type();
+                    break;
+                case TYPE:
+                    expect(reply, 2);
+                    passive();
+                    break;
+                case EPSV: {
+                    // a 229 without a port in it is as good as a refusal
+                    int port = reply.isCompletion() ? PassiveReply.parseEpsv(reply.getLastLine()) : -1;
+                    if (port >= 0) {
+                        connectData(control.socket().getInetAddress(), port);
+                    } else {
+                        extendedPassive = false;
+                        passive();
+                    }
+                    break;
+                }
+                case PASV: {
+                    expect(reply, 2);
+                    long pasv = PassiveReply.parsePasv(reply.getLastLine());
+                    if (pasv < 0) throw new FtpException(command, reply);
+                    connectData(PassiveReply.dataAddress(pasv, control.socket().getInetAddress()), PassiveReply.port(pasv));
+                    break;
+                }
+                case RETR:
+                    expect(reply, 1);
+                    out = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                    state = State.TRANSFER;
+                    dataKey.interestOps(SelectionKey.OP_READ);
+                    break;
+                case TRANSFER:
+                    expect(reply, 2);
+                    transferComplete = true;
+                    completeIfDone();
+                    break;
+                case QUIT:
+                    finish();
+                    break;
+                default:
+                    // no command is outstanding while the data connection opens
+                    throw new FtpException(command, reply);
+            }
+        }
+
+        private void loggedIn() throws IOException {
+            if (directory != null) {
+                state = State.CWD;
+                send("CWD " + directory);
+            } else {
+                type();
+            }
+        }
+
+        private void type() throws IOException {
+            state = State.TYPE;
+            send("TYPE I");
+        }
+
+        // Ask for a data connection, with EPSV unless it has already failed
+        private void passive() throws IOException {
+            state = extendedPassive ? State.EPSV : State.PASV;
+            setDeadline(REPLY_TIMEOUT);
+            send(extendedPassive ? "EPSV" : "PASV");
+        }
+
+        // The data connection didn't open: after EPSV try PASV, after PASV give up
+        private void dataFailed(IOException e) throws IOException {
+            closeQuietly(data);
+            data = null;
+            dataKey = null;
+            if (!extendedPassive) throw new DataConnectionException(dataHost, dataPort, e);
+            extendedPassive = false;
+            passive();
+        }
+
+        private void connectData(InetAddress dataAddress, int port) throws IOException {
+            dataHost = dataAddress.getHostAddress();
+            dataPort = port;
+            state = State.DATA_CONNECT;
+            setDeadline(CONNECT_TIMEOUT);
+            try {
+                data = SocketChannel.open();
+                data.configureBlocking(false);
+                boolean connected = data.connect(new InetSocketAddress(dataAddress, dataPort));
+                dataKey = data.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                if (connected) {
+                    dataKey.interestOps(0);
+                    setDeadline(REPLY_TIMEOUT);
+                    state = State.RETR;
+                    send("RETR " + remote);
+                }
+            } catch (IOException e) {
+                dataFailed(e);
+            }
+        }
+
+        // The download is done once the data has ended and the server has said so
+        private void completeIfDone() throws IOException {
+            if (!endOfData || !transferComplete) return;
+            out.close();
+            future.complete(position);
+            state = State.QUIT;
+            send("QUIT");
+        }
+
+        private void expect(FtpReply reply, int firstDigit) throws FtpException {
+            if (reply.getCode() / 100 != firstDigit) {
+                throw new FtpException(command, reply);
+            }
+        }
+
+        private void send(String command) throws IOException {
+            this.command = command;
+            unsent.add(ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.UTF_8)));
+            flush();
+        }
+
+        // Write what the socket takes now and wait for OP_WRITE for the rest
+        private void flush() throws IOException {
+            try {
+                while (!unsent.isEmpty()) {
+                    ByteBuffer head = unsent.peek();
+                    control.write(head);
+                    if (head.hasRemaining()) break;
+                    unsent.poll();
+                }
+            } catch (IOException e) {
+                throw new ControlConnectionException(e);
+            }
+            int ops = controlKey.interestOps();
+            controlKey.interestOps(unsent.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+        }
+
+        // Give up on the download and release everything it holds
+        void fail(IOException e) {
+            finish();
+            future.completeExceptionally(e);
+        }
+
+        private void finish() {
+            closeQuietly(control);
+            closeQuietly(data);
+            closeQuietly(out);
+        }
+
+        private static void closeQuietly(Closeable c) {
+            if (c == null) return;
+            try {
+                c.close();
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+
+    // Assembles complete replies from control connection bytes as they arrive,
+    // the non-blocking counterpart of ControlConnection.readReply
+    private static class Replies {
+        private byte[] line = new byte[256];
+        private int length = 0;
+        private List<String> lines = null; // the reply being assembled
+        private int code;
+        private final Queue<FtpReply> ready = new ArrayDeque<FtpReply>();
+
+        void feed(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                byte b = bytes.get();
+                if (b == '\n') {
+                    if (length > 0 && line[length - 1] == '\r') length--;
+                    add(new String(line, 0, length, StandardCharsets.UTF_8));
+                    length = 0;
+                } else {
+                    if (length == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, length);
+                        line = grown;
+                    }
+                    line[length++] = b;
+                }
+            }
+        }
+
+        FtpReply poll() {
+            return ready.poll();
+        }
+
+        private void add(String text) {
+            if (lines == null) {
+                lines = new ArrayList<String>(1);
+                lines.add(text);
+                code = ControlConnection.parseCode(text);
+                if (text.length() > 3 && text.charAt(3) == '-') return;
+            } else {
+                lines.add(text);
+                if (text.length() < 4 || ControlConnection.parseCode(text) != code || text.charAt(3) != ' ') return;
+            }
+            ready.add(new FtpReply(code, lines));
+            lines = null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+//
+// Opens new FtpSessions that look like the REPL's own connection:
+// same server, same credentials, same working directory.
+// With a SessionPool, sessions are borrowed from it and given back by
+// release(), so only the CWD is repeated for a reused session.
+//
+
+class SessionFactory {
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final String directory;
+    private final SessionPool pool; // null when sessions aren't pooled
+    private final ListingCache listings; // null when listings aren't cached
+    private boolean compression = false;
+
+    SessionFactory(String host, int port, String user, String password, String directory) {
+        this(null, null, host, port, user, password, directory);
+    }
+
+    SessionFactory(SessionPool pool, ListingCache listings, String host, int port, String user, String password,
+                   String directory) {
+        this.pool = pool;
+        this.listings = listings;
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.directory = directory;
+    }
+
+    // Download whole files in MODE Z where the server offers it
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    String getDirectory() {
+        return directory;
+    }
+
+    // Connect, log in and change to the directory
+    FtpSession open() throws IOException {
+        FtpSession session;
+        if (pool != null) {
+            try {
+                session = pool.borrow(host, port, user, password);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a session");
+            }
+        } else {
+            session = FtpSession.open(host, port);
+            try {
+                if (user != null) {
+                    session.login(user, password);
+                }
+            } catch (IOException e) {
+                session.close();
+                throw e;
+            }
+        }
+        session.setListingCache(listings);
+        session.setCompression(compression);
+        try {
+            if (directory != null) {
+                session.changeDirectory(directory);
+            }
+        } catch (FtpException e) {
+            release(session);
+            throw e;
+        } catch (IOException e) {
+            discard(session);
+            throw e;
+        }
+        return session;
+    }
+
+    // Done with a session that is still in step with the server
+    void release(FtpSession session) {
+        if (pool != null) {
+            pool.release(session);
+        } else {
+            try {
+                session.quit();
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+
+    // Done with a session whose control connection can't be trusted any more
+    void discard(FtpSession session) {
+        if (pool != null) {
+            pool.discard(session);
+        } else {
+            try {
+                session.close();
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+        }
+    }
+}
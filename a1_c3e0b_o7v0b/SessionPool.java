@@ -0,0 +1,291 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//
+// Keeps logged-in FtpSessions alive between transfers so that repeated
+// fetches skip the connect, greeting and USER/PASS round trips.
+// Idle sessions are keyed by host, port and user. A session that has been
+// idle for a while is checked with NOOP before it is handed out, and one that
+// stays idle longer than the idle timeout is closed by a background sweep.
+// No more than maxPerHost sessions, busy or idle, are open to one server.
+//
+
+class SessionPool implements Closeable {
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    static final int DEFAULT_MAX_PER_HOST = 8;
+    // Sessions used more recently than this are handed out without a NOOP
+    static final long VALIDATE_AFTER_MILLIS = 2 * 1000;
+
+    private final long idleTimeoutNanos;
+    private final int maxPerHost;
+
+    // idle sessions per host:port:user, most recently released first
+    private final Map<String, Deque<Idle>> idle = new HashMap<String, Deque<Idle>>();
+    // open sessions per host:port, busy and idle together
+    private final Map<String, Integer> open = new HashMap<String, Integer>();
+    // where every open session belongs, whether busy or idle
+    private final Map<FtpSession, Slot> slots = new HashMap<FtpSession, Slot>();
+
+    private final ScheduledExecutorService sweeper;
+    private boolean closed = false;
+
+    // When set, new sessions record their latencies in it
+    private volatile Metrics metrics = null;
+    // When set, new sessions keep to its bandwidth limits
+    private volatile BandwidthScheduler bandwidth = null;
+
+    // The host:port a session counts against and the host:port:user it is idle under
+    private static class Slot {
+        final String hostKey;
+        final String key;
+
+        Slot(String hostKey, String key) {
+            this.hostKey = hostKey;
+            this.key = key;
+        }
+    }
+
+    // An idle session and when it was released
+    private static class Idle {
+        final FtpSession session;
+        final long since;
+
+        Idle(FtpSession session, long since) {
+            this.session = session;
+            this.since = since;
+        }
+    }
+
+    SessionPool() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_MAX_PER_HOST);
+    }
+
+    SessionPool(long idleTimeoutMillis, int maxPerHost) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxPerHost = maxPerHost;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ftp-pool-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setBandwidthScheduler(BandwidthScheduler bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    // Hand out a logged-in session, reusing an idle one when possible.
+    // Blocks while maxPerHost sessions to the server are busy.
+    FtpSession borrow(String host, int port, String user, String password) throws IOException, InterruptedException {
+        String hostKey = host + ":" + port;
+        String key = hostKey + ":" + user;
+        while (true) {
+            Idle candidate = null;
+            List<FtpSession> surplus = new ArrayList<FtpSession>();
+            synchronized (this) {
+                if (closed) throw new IOException("Session pool is closed");
+                Deque<Idle> sessions = idle.get(key);
+                if (sessions != null && !sessions.isEmpty()) {
+                    candidate = sessions.pollFirst();
+                } else if (count(hostKey) < maxPerHost) {
+                    open.put(hostKey, count(hostKey) + 1);
+                } else if (!takeIdleForOtherUser(hostKey, surplus)) {
+                    // every slot to this server is busy
+                    wait();
+                    continue;
+                }
+            }
+            closeAll(surplus);
+            if (candidate != null) {
+                if (isAlive(candidate)) return candidate.session;
+                discard(candidate.session);
+                continue;
+            }
+            return connect(hostKey, key, host, port, user, password);
+        }
+    }
+
+    // Give a session back for reuse
+    void release(FtpSession session) {
+        synchronized (this) {
+            Slot slot = slots.get(session);
+            if (slot != null && !closed) {
+                Deque<Idle> sessions = idle.get(slot.key);
+                if (sessions == null) {
+                    sessions = new ArrayDeque<Idle>();
+                    idle.put(slot.key, sessions);
+                }
+                sessions.addFirst(new Idle(session, System.nanoTime()));
+                notifyAll();
+                return;
+            }
+        }
+        discard(session);
+    }
+
+    // Close a session that must not be reused, e.g. after a control connection error
+    void discard(FtpSession session) {
+        synchronized (this) {
+            forget(session);
+            notifyAll();
+        }
+        quietlyClose(session);
+    }
+
+    // Close every idle session that has outlived the idle timeout
+    void evictIdle() {
+        List<FtpSession> expired = new ArrayList<FtpSession>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (Deque<Idle> sessions : idle.values()) {
+                Iterator<Idle> it = sessions.iterator();
+                while (it.hasNext()) {
+                    Idle i = it.next();
+                    if (now - i.since > idleTimeoutNanos) {
+                        it.remove();
+                        expired.add(i.session);
+                    }
+                }
+            }
+            for (FtpSession session : expired) {
+                forget(session);
+            }
+            if (!expired.isEmpty()) notifyAll();
+        }
+        closeAll(expired);
+    }
+
+    // Close the idle sessions and refuse further borrows. Busy sessions are
+    // closed when they are released.
+    @Override
+    public void close() {
+        List<FtpSession> sessions = new ArrayList<FtpSession>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<Idle> deque : idle.values()) {
+                for (Idle i : deque) {
+                    sessions.add(i.session);
+                    forget(i.session);
+                }
+            }
+            idle.clear();
+            notifyAll();
+        }
+        sweeper.shutdownNow();
+        closeAll(sessions);
+    }
+
+    // return the number of sessions open to host:port
+    synchronized int count(String hostKey) {
+        Integer n = open.get(hostKey);
+        return n == null ? 0 : n;
+    }
+
+    // return the number of idle sessions across all keys
+    synchronized int idleCount() {
+        int n = 0;
+        for (Deque<Idle> sessions : idle.values()) {
+            n += sessions.size();
+        }
+        return n;
+    }
+
+    // Open and log in a new session in a slot that has already been counted
+    private FtpSession connect(String hostKey, String key, String host, int port, String user, String password)
+            throws IOException {
+        FtpSession session = null;
+        try {
+            session = FtpSession.open(host, port, null, metrics);
+            session.setBandwidthScheduler(bandwidth);
+            if (user != null) {
+                session.login(user, password);
+            }
+        } catch (IOException e) {
+            if (session != null) quietlyClose(session);
+            synchronized (this) {
+                open.put(hostKey, count(hostKey) - 1);
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            slots.put(session, new Slot(hostKey, key));
+        }
+        return session;
+    }
+
+    // Move one idle session of another user on the same server into surplus,
+    // keeping its slot counted for the caller
+    private boolean takeIdleForOtherUser(String hostKey, List<FtpSession> surplus) {
+        for (Map.Entry<String, Deque<Idle>> entry : idle.entrySet()) {
+            if (entry.getKey().startsWith(hostKey + ":") && !entry.getValue().isEmpty()) {
+                FtpSession session = entry.getValue().pollLast().session;
+                slots.remove(session);
+                surplus.add(session);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sessions released a moment ago are trusted, older ones must answer NOOP
+    private boolean isAlive(Idle candidate) {
+        if (System.nanoTime() - candidate.since < TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER_MILLIS)) {
+            return true;
+        }
+        try {
+            candidate.session.noop();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Drop the bookkeeping for a session; the caller holds the lock
+    private void forget(FtpSession session) {
+        Slot slot = slots.remove(session);
+        if (slot != null) {
+            open.put(slot.hostKey, count(slot.hostKey) - 1);
+        }
+    }
+
+    private static void closeAll(List<FtpSession> sessions) {
+        for (FtpSession session : sessions) {
+            quietlyClose(session);
+        }
+    }
+
+    // QUIT politely, but never let a dead connection get in the way
+    private static void quietlyClose(FtpSession session) {
+        try {
+            session.quit();
+        } catch (IOException e) {
+//            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//
+// Moves the bytes of a data connection into a local file, and of a local
+// file into a data connection. A blocking SocketChannel is handed straight
+// to FileChannel.transferFrom so the copy never goes through the Java heap;
+// any other channel is drained through one large direct buffer that is
+// reused by the calling thread.
+//
+
+class TransferEngine {
+    // Upper bound for a single transferFrom call, keeps each call short
+    static final long CHUNK_SIZE = 64L * 1024 * 1024;
+    // Size of the direct buffer used by the fallback copy loop
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    // Decompressed output of MODE Z transfers, and the Inflater producing it
+    private static final ThreadLocal<ByteBuffer> INFLATED = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private TransferEngine() {
+    }
+
+    // Copy everything readable from src into dst starting at position
+    // return the number of bytes written
+    static long transfer(ReadableByteChannel src, FileChannel dst, long position) throws IOException {
+        return transfer(src, dst, position, Long.MAX_VALUE);
+    }
+
+    // Copy at most count bytes from src into dst starting at position
+    // return the number of bytes written
+    static long transfer(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+        return transfer(src, dst, position, count, null);
+    }
+
+    // As above, adding every byte to checksums when they are given, and moving
+    // no faster than throttle allows when it is given. Bytes that are hashed or
+    // throttled pass through the buffer; the others go by transferFrom.
+    // Whether a limit applies is checked again for every chunk, so a limit set
+    // or lifted during the transfer takes effect within one chunk.
+    static long transfer(ReadableByteChannel src, FileChannel dst, long position, long count, Checksums checksums,
+                         BandwidthScheduler.Throttle throttle) throws IOException {
+        boolean zeroCopy = checksums == null && src instanceof SocketChannel && ((SocketChannel) src).isBlocking();
+        long total = 0;
+        while (total < count) {
+            boolean limited = throttle != null && throttle.isLimited();
+            long n;
+            if (zeroCopy && !limited) {
+                // transferFrom returns 0 once the blocking source has reached end of stream
+                n = dst.transferFrom(src, position + total, Math.min(CHUNK_SIZE, count - total));
+                if (n <= 0) break;
+            } else {
+                n = copyOnce(src, dst, position + total, limited ? throttle.quantum(count - total) : count - total,
+                        checksums);
+                if (n < 0) break;
+                if (limited) throttle.acquire(n);
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    static long transfer(ReadableByteChannel src, FileChannel dst, long position, long count, Checksums checksums)
+            throws IOException {
+        return transfer(src, dst, position, count, checksums, null);
+    }
+
+    // Fallback path: read into a direct buffer and write at explicit positions
+    static long copy(ReadableByteChannel src, FileChannel dst, long position, long count) throws IOException {
+        long total = 0;
+        long n;
+        while (total < count && (n = copyOnce(src, dst, position + total, count - total, null)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    // Wait for whatever src has available, at most count bytes, and write it to dst at position
+    // return the number of bytes written, 0 at end of stream
+    static long transferOnce(ReadableByteChannel src, FileChannel dst, long position, long count, Checksums checksums)
+            throws IOException {
+        return Math.max(0, copyOnce(src, dst, position, count, checksums));
+    }
+
+    // One read into the direct buffer, at most count bytes, written to dst at position
+    // return the number of bytes written, -1 at end of stream
+    private static long copyOnce(ReadableByteChannel src, FileChannel dst, long position, long count, Checksums checksums)
+            throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), count));
+        if (src.read(buffer) == -1) return -1;
+        buffer.flip();
+        if (checksums != null) checksums.update(buffer);
+        long total = 0;
+        while (buffer.hasRemaining()) {
+            total += dst.write(buffer, position + total);
+        }
+        return total;
+    }
+
+    // Decompress the zlib stream of a MODE Z transfer from src into dst at position.
+    // Compressed bytes are read into the direct buffer and inflated into a second
+    // one, both kept by the thread along with its Inflater, so nothing is staged
+    // on disk or allocated per transfer. checksums see the decompressed bytes,
+    // throttle limits the compressed ones, as those are what cross the network.
+    // return the number of decompressed bytes written
+    static long inflate(ReadableByteChannel src, FileChannel dst, long position, Checksums checksums,
+                        BandwidthScheduler.Throttle throttle) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        ByteBuffer in = BUFFER.get();
+        ByteBuffer out = INFLATED.get();
+        long total = 0;
+        while (!inflater.finished()) {
+            if (inflater.needsInput()) {
+                boolean limited = throttle != null && throttle.isLimited();
+                in.clear();
+                if (limited) in.limit((int) throttle.quantum(in.capacity()));
+                int n = src.read(in);
+                if (n == -1) throw new EOFException("Compressed data ended early");
+                if (limited) throttle.acquire(n);
+                in.flip();
+                inflater.setInput(in);
+            }
+            out.clear();
+            try {
+                inflater.inflate(out);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed data: " + e.getMessage(), e);
+            }
+            if (inflater.needsDictionary()) {
+                throw new IOException("Corrupt compressed data: preset dictionary");
+            }
+            out.flip();
+            if (checksums != null) checksums.update(out);
+            while (out.hasRemaining()) {
+                total += dst.write(out, position + total);
+            }
+        }
+        return total;
+    }
+
+    // Send count bytes of src, starting at position, to dst.
+    // FileChannel.transferTo lets the kernel send straight from the page cache,
+    // so the file's contents never pass through the Java heap.
+    // return the number of bytes sent, less than count if the file is shorter
+    static long send(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        return send(src, position, count, dst, null);
+    }
+
+    // As above, no faster than throttle allows when it is given
+    static long send(FileChannel src, long position, long count, WritableByteChannel dst,
+                     BandwidthScheduler.Throttle throttle) throws IOException {
+        long total = 0;
+        while (total < count) {
+            boolean limited = throttle != null && throttle.isLimited();
+            long wanted = limited ? throttle.quantum(count - total) : Math.min(CHUNK_SIZE, count - total);
+            long n = src.transferTo(position + total, wanted, dst);
+            if (n <= 0) break;
+            if (limited) throttle.acquire(n);
+            total += n;
+        }
+        return total;
+    }
+
+    // Format a throughput report line for a finished download
+    static String report(long bytes, long elapsedNanos) {
+        return report(bytes, elapsedNanos, "received");
+    }
+
+    // Format a throughput report line for a finished transfer, e.g. "sent"
+    static String report(long bytes, long elapsedNanos, String direction) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("%d bytes %s in %.3f secs (%.0f bytes/sec)", bytes, direction, seconds, bytes / seconds);
+    }
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import harness.LoopbackServer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+//
+// Handles onto the client's classes. They live in the default package, which
+// a named package can't import, and JMH won't generate benchmarks in the
+// default package, so they are looked up by name once and called through
+// constant MethodHandles, which the JIT inlines like direct calls.
+//
+
+final class Client {
+    // long TransferEngine.transfer(ReadableByteChannel, FileChannel, long, long)
+    static final MethodHandle TRANSFER = method("TransferEngine", "transfer",
+            ReadableByteChannel.class, FileChannel.class, long.class, long.class);
+    // long TransferEngine.copy(ReadableByteChannel, FileChannel, long, long)
+    static final MethodHandle COPY = method("TransferEngine", "copy",
+            ReadableByteChannel.class, FileChannel.class, long.class, long.class);
+    // long PassiveReply.parsePasv(CharSequence)
+    static final MethodHandle PARSE_PASV = method("PassiveReply", "parsePasv", CharSequence.class);
+    // int PassiveReply.parseEpsv(CharSequence)
+    static final MethodHandle PARSE_EPSV = method("PassiveReply", "parseEpsv", CharSequence.class);
+    // int ControlConnection.parseCode(String)
+    static final MethodHandle PARSE_CODE = method("ControlConnection", "parseCode", String.class);
+    // new ControlConnection(Socket)
+    static final MethodHandle CONTROL_CONNECTION = constructor("ControlConnection", Socket.class);
+    // FtpReply ControlConnection.readReply()
+    static final MethodHandle READ_REPLY = method("ControlConnection", "readReply");
+    // FtpSession FtpSession.open(String, int)
+    static final MethodHandle OPEN = method("FtpSession", "open", String.class, int.class);
+    // void FtpSession.login(String, String)
+    static final MethodHandle LOGIN = method("FtpSession", "login", String.class, String.class);
+    // void FtpSession.binary()
+    static final MethodHandle BINARY = method("FtpSession", "binary");
+    // long FtpSession.retrieve(String, String)
+    static final MethodHandle RETRIEVE = method("FtpSession", "retrieve", String.class, String.class);
+    // FtpReply FtpSession.command(String)
+    static final MethodHandle COMMAND = method("FtpSession", "command", String.class);
+    // void FtpSession.quit()
+    static final MethodHandle QUIT = method("FtpSession", "quit");
+
+    private Client() {
+    }
+
+    // return a logged-in session in binary mode, as an Object
+    static Object login(LoopbackServer server) throws Throwable {
+        Object session = OPEN.invoke(server.getHost(), server.getPort());
+        LOGIN.invoke(session, "bench", "bench");
+        BINARY.invoke(session);
+        return session;
+    }
+
+    static void quit(Object session) {
+        try {
+            QUIT.invoke(session);
+        } catch (Throwable e) {
+//            e.printStackTrace();
+        }
+    }
+
+    private static MethodHandle method(String className, String name, Class<?>... parameters) {
+        try {
+            Method method = Class.forName(className).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CSftp classes not on the classpath: " + className + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(String className, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CSftp classes not on the classpath: " + className, e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//
+// The control connection's parsing, without any network underneath:
+// replies are read from an in-memory stream that replays the same bytes
+// forever, so only line assembly, decoding and code parsing are measured.
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReplyBenchmark {
+    static final String PASV = "227 Entering Passive Mode (192,168,10,20,197,143)";
+    static final String EPSV = "229 Entering Extended Passive Mode (|||50575|)";
+    static final String SINGLE = "226 Transfer complete\r\n";
+    static final String MULTI = "211-Features:\r\n MDTM\r\n MLSD\r\n SIZE\r\n REST STREAM\r\n"
+            + " EPSV\r\n UTF8\r\n TVFS\r\n211 End\r\n";
+
+    private Object single;
+    private Object multi;
+
+    @Setup
+    public void start() throws Throwable {
+        single = Client.CONTROL_CONNECTION.invoke(new ReplaySocket(SINGLE));
+        multi = Client.CONTROL_CONNECTION.invoke(new ReplaySocket(MULTI));
+    }
+
+    @Benchmark
+    public Object singleLineReply() throws Throwable {
+        return Client.READ_REPLY.invoke(single);
+    }
+
+    @Benchmark
+    public Object multiLineReply() throws Throwable {
+        return Client.READ_REPLY.invoke(multi);
+    }
+
+    @Benchmark
+    public int parseCode() throws Throwable {
+        return (int) Client.PARSE_CODE.invoke(PASV);
+    }
+
+    @Benchmark
+    public long parsePasv() throws Throwable {
+        return (long) Client.PARSE_PASV.invoke(PASV);
+    }
+
+    @Benchmark
+    public int parseEpsv() throws Throwable {
+        return (int) Client.PARSE_EPSV.invoke(EPSV);
+    }
+
+    // An unconnected socket whose input is the same text over and over
+    static class ReplaySocket extends Socket {
+        private final InputStream in;
+
+        ReplaySocket(String text) {
+            final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            in = new InputStream() {
+                private int position = 0;
+
+                @Override
+                public int read() {
+                    int b = bytes[position];
+                    position = (position + 1) % bytes.length;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    int n = 0;
+                    while (n < length) {
+                        int chunk = Math.min(length - n, bytes.length - position);
+                        System.arraycopy(bytes, position, buffer, offset + n, chunk);
+                        n += chunk;
+                        position = (position + chunk) % bytes.length;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            };
+        }
+    }
+}
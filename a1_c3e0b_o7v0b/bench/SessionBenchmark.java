@@ -0,0 +1,70 @@
+package bench;
+
+import harness.LoopbackServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+//
+// Whole commands on a logged-in FtpSession against harness.LoopbackServer.
+//   retrieve - a complete 'get' of size bytes: PASV, data connect, RETR,
+//              the copy into a local file and the 226 reply
+//   noop     - one control round trip, the floor under every command
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionBenchmark {
+    @Param({"1024", "65536", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    private LoopbackServer server;
+    private Object session;
+    private Path file;
+    private String remote;
+
+    @Setup(Level.Trial)
+    public void start() throws Throwable {
+        server = new LoopbackServer();
+        remote = Long.toString(size);
+        server.addFile(remote, size);
+        session = Client.login(server);
+        file = Files.createTempFile("csftp-bench", ".bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        Client.quit(session);
+        Files.deleteIfExists(file);
+        server.close();
+    }
+
+    @Benchmark
+    public long retrieve() throws Throwable {
+        return (long) Client.RETRIEVE.invoke(session, remote, file.toString());
+    }
+
+    @Benchmark
+    public Object noop() throws Throwable {
+        return Client.COMMAND.invoke(session, "NOOP");
+    }
+}
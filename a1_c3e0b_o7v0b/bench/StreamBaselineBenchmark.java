@@ -0,0 +1,84 @@
+package bench;
+
+import harness.LoopbackServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+//
+// The original receiveFile loop, one read() and one write() per byte, kept
+// as the baseline TransferBenchmark is compared against. Every byte is a
+// write system call, so sizes stop at 1 MB. As in TransferBenchmark, one
+// endless data connection per iteration is read size bytes at a time.
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamBaselineBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public long size;
+
+    private LoopbackServer server;
+    private Path file;
+    private SocketChannel data;
+    private InputStream in;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = new LoopbackServer();
+        file = Files.createTempFile("csftp-bench", ".bin");
+    }
+
+    @Setup(Level.Iteration)
+    public void connect() throws IOException {
+        data = server.source(Long.MAX_VALUE);
+        in = new BufferedInputStream(data.socket().getInputStream());
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() throws IOException {
+        data.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        Files.deleteIfExists(file);
+        server.close();
+    }
+
+    @Benchmark
+    public long receiveFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(file.toFile());
+        long total = 0;
+        int b;
+        while (total < size && (b = in.read()) != -1) {
+            out.write(b);
+            total++;
+        }
+        out.close();
+        return total;
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import harness.LoopbackServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+//
+// Time to copy size bytes from a loopback data connection into a local file.
+//   transferFrom - TransferEngine's path for blocking sockets
+//   directBuffer - TransferEngine's fallback through its direct buffer
+// Each iteration opens one data connection that never runs dry and every
+// operation copies the next size bytes off it, so connection setup, which
+// would swamp a 1 KB copy, is outside the measurement altogether.
+// Divide size by the score for bytes/sec.
+//
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransferBenchmark {
+    @Param({"1024", "65536", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    private LoopbackServer server;
+    private Path file;
+    private FileChannel out;
+    private SocketChannel data;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        server = new LoopbackServer();
+        file = Files.createTempFile("csftp-bench", ".bin");
+        out = FileChannel.open(file, StandardOpenOption.WRITE);
+    }
+
+    @Setup(Level.Iteration)
+    public void connect() throws IOException {
+        data = server.source(Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() throws IOException {
+        data.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        out.close();
+        Files.deleteIfExists(file);
+        server.close();
+    }
+
+    @Benchmark
+    public long transferFrom() throws Throwable {
+        return (long) Client.TRANSFER.invoke(data, out, 0L, size);
+    }
+
+    @Benchmark
+    public long directBuffer() throws Throwable {
+        return (long) Client.COPY.invoke(data, out, 0L, size);
+    }
+}
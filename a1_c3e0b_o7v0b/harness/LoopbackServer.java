@@ -0,0 +1,724 @@
+package harness;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+
+//
+// An in-process FTP server on 127.0.0.1 for running CSftp without a network:
+// USER, PASS, CWD, CDUP, PWD, TYPE, MODE (S and Z), NOOP, FEAT, OPTS, SIZE,
+// MDTM, HASH (SHA-256), REST, PASV, EPSV, LIST, MLSD, RETR, STOR and QUIT over
+// a tree of files kept in memory. Any user and password log in.
+// A file is either given bytes or only a size, in which case its content is
+// generated (byte i is i % 251), so multi-gigabyte files cost no memory and
+// a misplaced REST offset still shows up when comparing.
+// Faults can be set at any time and apply from the next reply or transfer:
+// control reply latency, bandwidth per data connection, data connections
+// dropped after some bytes, a delay before the 226 ending a transfer, and
+// EPSV refused as by a server that only knows PASV.
+// Every control connection is served by a thread of its own.
+// source(N) skips the control connection and returns a data connection on
+// which N generated bytes arrive, for benchmarking a copy loop on its own.
+//
+
+public class LoopbackServer implements Closeable {
+    // Generated files repeat with this period, a prime so it never lines up with buffer sizes
+    private static final int PERIOD = 251;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[] PATTERN = new byte[CHUNK_SIZE + PERIOD];
+
+    static {
+        for (int i = 0; i < PATTERN.length; i++) {
+            PATTERN[i] = (byte) (i % PERIOD);
+        }
+    }
+
+    private static final DateTimeFormatter LIST_TIME =
+            DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.ROOT).withZone(ZoneOffset.UTC);
+    // MDTM and MLSD's modify fact
+    private static final DateTimeFormatter FACT_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ROOT).withZone(ZoneOffset.UTC);
+
+    private final ServerSocketChannel control;
+    // Where source() connects, opened on its first call
+    private ServerSocketChannel source = null;
+    // Absolute paths, "/" for the root, to files and directories
+    private final ConcurrentNavigableMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+
+    private volatile long latencyMillis = 0;
+    private volatile long bandwidth = 0;
+    private volatile long dropAfter = -1;
+    private final AtomicLong dropOnce = new AtomicLong(-1);
+    private volatile long completionDelayMillis = 0;
+    private volatile boolean refuseEpsv = false;
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    // Listen on an ephemeral port
+    public LoopbackServer() throws IOException {
+        this(0);
+    }
+
+    public LoopbackServer(int port) throws IOException {
+        entries.put("/", Entry.directory());
+        control = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", port));
+        daemon("loopback-control", new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return control.socket().getLocalPort();
+    }
+
+    // Add a file holding content, creating its parent directories
+    public void addFile(String path, byte[] content) {
+        add(path, Entry.file(content, content.length));
+    }
+
+    // Add a file of size generated bytes, creating its parent directories
+    public void addFile(String path, long size) {
+        add(path, Entry.file(null, size));
+    }
+
+    public void addDirectory(String path) {
+        add(path, Entry.directory());
+    }
+
+    // Set a file's modification time, as if it had been replaced in place
+    public void setModified(String path, long millis) {
+        Entry entry = entries.get(resolve("/", path));
+        if (entry != null) entry.modified = millis;
+    }
+
+    // return the size of the file at path, -1 if there is none
+    public long getSize(String path) {
+        Entry entry = entries.get(resolve("/", path));
+        return entry == null || entry.isDirectory() ? -1 : entry.size;
+    }
+
+    // return the content of the file at path, stored or generated
+    public byte[] getContent(String path) {
+        Entry entry = entries.get(resolve("/", path));
+        if (entry == null || entry.isDirectory()) return null;
+        if (entry.content != null) return entry.content.clone();
+        byte[] content = new byte[(int) entry.size];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % PERIOD);
+        }
+        return content;
+    }
+
+    // Delay every control reply by millis, as a long round trip would
+    public void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    // Send at most bytesPerSecond on each data connection, 0 for no limit
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    // Close each data connection after sending bytes of the transfer, answering
+    // 426 as a server losing the connection would; -1 to send everything
+    public void setDropAfter(long bytes) {
+        dropAfter = bytes;
+    }
+
+    // As setDropAfter, for the next transfer only
+    public void setDropOnce(long bytes) {
+        dropOnce.set(bytes);
+    }
+
+    // Wait millis between the end of the data and the 226 reply
+    public void setCompletionDelay(long millis) {
+        completionDelayMillis = millis;
+    }
+
+    // Answer EPSV with 502, so that clients have to fall back to PASV
+    public void setRefuseEpsv(boolean refuse) {
+        refuseEpsv = refuse;
+    }
+
+    // return the number of control connections being served
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    // return the number of bytes sent on data connections so far
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    // return a blocking data connection on which exactly size generated bytes
+    // arrive, Long.MAX_VALUE for as many as are read before it is closed
+    public SocketChannel source(long size) throws IOException {
+        SocketChannel data = SocketChannel.open(sourceAddress());
+        ByteBuffer request = ByteBuffer.allocate(8).putLong(0, size);
+        while (request.hasRemaining()) {
+            data.write(request);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        control.close();
+        if (source != null) source.close();
+    }
+
+    private synchronized SocketAddress sourceAddress() throws IOException {
+        if (source == null) {
+            source = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            daemon("loopback-source", new Runnable() {
+                @Override
+                public void run() {
+                    acceptSource();
+                }
+            });
+        }
+        return source.getLocalAddress();
+    }
+
+    private void add(String path, Entry entry) {
+        String full = resolve("/", path);
+        for (int slash = full.indexOf('/', 1); slash > 0; slash = full.indexOf('/', slash + 1)) {
+            entries.putIfAbsent(full.substring(0, slash), Entry.directory());
+        }
+        entries.put(full, entry);
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel client = control.accept();
+                daemon("loopback-session", new Runnable() {
+                    @Override
+                    public void run() {
+                        activeSessions.incrementAndGet();
+                        try {
+                            new Session(client).serve();
+                        } finally {
+                            activeSessions.decrementAndGet();
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    // Each source() connection first sends the number of bytes it wants
+    private void acceptSource() {
+        try {
+            while (true) {
+                final SocketChannel client = source.accept();
+                daemon("loopback-source-data", new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            ByteBuffer request = ByteBuffer.allocate(8);
+                            while (request.hasRemaining() && client.read(request) >= 0) {
+                                // wait for the whole length
+                            }
+                            long size = request.getLong(0);
+                            for (long sent = 0; sent < size; ) {
+                                int n = (int) Math.min(CHUNK_SIZE, size - sent);
+                                ByteBuffer chunk = ByteBuffer.wrap(PATTERN, (int) (sent % PERIOD), n);
+                                while (chunk.hasRemaining()) {
+                                    client.write(chunk);
+                                }
+                                sent += n;
+                                bytesSent.addAndGet(n);
+                            }
+                        } catch (IOException e) {
+                            // the benchmark hung up
+                        } finally {
+                            closeQuietly(client);
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    // The state of one control connection, served one command at a time
+    private class Session {
+        private final SocketChannel client;
+        private Writer out;
+        private ServerSocketChannel passive = null;
+        private String directory = "/";
+        private long restart = 0;
+        private boolean compressed = false; // MODE Z
+
+        Session(SocketChannel client) {
+            this.client = client;
+        }
+
+        void serve() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        client.socket().getInputStream(), StandardCharsets.UTF_8));
+                out = new OutputStreamWriter(client.socket().getOutputStream(), StandardCharsets.UTF_8);
+                reply("220 loopback ready");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+                    String argument = space < 0 ? "" : line.substring(space + 1);
+                    if (verb.equals("QUIT")) {
+                        reply("221 bye");
+                        break;
+                    }
+                    execute(verb, argument);
+                    if (!verb.equals("REST")) {
+                        restart = 0;
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                dropPassive();
+                closeQuietly(client);
+            }
+        }
+
+        private void execute(String verb, String argument) throws IOException {
+            if (verb.equals("USER")) {
+                reply("331 password please");
+            } else if (verb.equals("PASS")) {
+                reply("230 logged in");
+            } else if (verb.equals("TYPE") || verb.equals("NOOP")) {
+                reply("200 ok");
+            } else if (verb.equals("MODE")) {
+                if (argument.equalsIgnoreCase("S") || argument.equalsIgnoreCase("Z")) {
+                    compressed = argument.equalsIgnoreCase("Z");
+                    reply("200 mode " + argument.toUpperCase(Locale.ROOT));
+                } else {
+                    reply("504 mode " + argument + " not supported");
+                }
+            } else if (verb.equals("FEAT")) {
+                reply("211-Features:\r\n SIZE\r\n MDTM\r\n REST STREAM\r\n EPSV\r\n MLSD\r\n MODE Z\r\n"
+                        + " HASH SHA-256*\r\n211 End");
+            } else if (verb.equals("OPTS")) {
+                reply(argument.equalsIgnoreCase("HASH SHA-256") ? "200 SHA-256" : "501 option not supported");
+            } else if (verb.equals("PWD")) {
+                reply("257 \"" + directory.replace("\"", "\"\"") + "\" is the current directory");
+            } else if (verb.equals("CWD") || verb.equals("CDUP")) {
+                String path = resolve(directory, verb.equals("CDUP") ? ".." : argument);
+                Entry entry = entries.get(path);
+                if (entry == null || !entry.isDirectory()) {
+                    reply("550 " + argument + ": no such directory");
+                } else {
+                    directory = path;
+                    reply("250 directory changed to " + path);
+                }
+            } else if (verb.equals("SIZE")) {
+                Entry entry = entries.get(resolve(directory, argument));
+                if (entry == null || entry.isDirectory()) {
+                    reply("550 " + argument + ": no such file");
+                } else {
+                    reply("213 " + entry.size);
+                }
+            } else if (verb.equals("MDTM")) {
+                Entry entry = entries.get(resolve(directory, argument));
+                if (entry == null || entry.isDirectory()) {
+                    reply("550 " + argument + ": no such file");
+                } else {
+                    reply("213 " + FACT_TIME.format(Instant.ofEpochMilli(entry.modified)));
+                }
+            } else if (verb.equals("HASH")) {
+                Entry entry = entries.get(resolve(directory, argument));
+                if (entry == null || entry.isDirectory()) {
+                    reply("550 " + argument + ": no such file");
+                } else {
+                    reply("213 SHA-256 0-" + entry.size + " " + sha256(entry) + " " + argument);
+                }
+            } else if (verb.equals("REST")) {
+                try {
+                    restart = Long.parseLong(argument.trim());
+                    reply("350 restarting at " + restart);
+                } catch (NumberFormatException e) {
+                    reply("501 REST takes a byte offset");
+                }
+            } else if (verb.equals("PASV")) {
+                int port = listen();
+                reply("227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")");
+            } else if (verb.equals("EPSV") && refuseEpsv) {
+                reply("502 EPSV not implemented");
+            } else if (verb.equals("EPSV")) {
+                reply("229 Entering Extended Passive Mode (|||" + listen() + "|)");
+            } else if (verb.equals("LIST")) {
+                list(argument, false);
+            } else if (verb.equals("MLSD")) {
+                list(argument, true);
+            } else if (verb.equals("RETR")) {
+                retrieve(argument);
+            } else if (verb.equals("STOR")) {
+                store(argument);
+            } else {
+                reply("502 " + verb + " not implemented");
+            }
+        }
+
+        // "ls -l" lines, or MLSD fact lines, for a directory's children, or for a single file
+        private void list(String argument, boolean facts) throws IOException {
+            // options such as "-a" are ignored
+            String path = argument.startsWith("-") || argument.isEmpty() ? directory : resolve(directory, argument);
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                dropPassive();
+                reply("550 " + argument + ": no such file or directory");
+                return;
+            }
+            StringBuilder listing = new StringBuilder();
+            if (entry.isDirectory()) {
+                String prefix = path.equals("/") ? "/" : path + "/";
+                for (Map.Entry<String, Entry> child : entries.subMap(prefix, false, prefix + Character.MAX_VALUE, false).entrySet()) {
+                    String name = child.getKey().substring(prefix.length());
+                    if (name.indexOf('/') < 0) {
+                        listing.append(facts ? factLine(name, child.getValue()) : listLine(name, child.getValue()));
+                    }
+                }
+            } else {
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                listing.append(facts ? factLine(name, entry) : listLine(name, entry));
+            }
+            SocketChannel data = openData();
+            if (data == null) return;
+            reply("150 here comes the listing");
+            WritableByteChannel sink = sink(data);
+            try {
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(listing.toString());
+                while (bytes.hasRemaining()) {
+                    sink.write(bytes);
+                }
+            } finally {
+                closeQuietly(sink);
+                closeQuietly(data);
+            }
+            complete();
+        }
+
+        private void retrieve(String argument) throws IOException {
+            Entry entry = entries.get(resolve(directory, argument));
+            if (entry == null || entry.isDirectory()) {
+                dropPassive();
+                reply("550 " + argument + ": no such file");
+                return;
+            }
+            long offset = Math.min(restart, entry.size);
+            SocketChannel data = openData();
+            if (data == null) return;
+            reply("150 sending " + (entry.size - offset) + " bytes");
+            WritableByteChannel sink = sink(data);
+            boolean complete;
+            try {
+                complete = send(sink, entry, offset);
+            } finally {
+                closeQuietly(sink);
+                closeQuietly(data);
+            }
+            if (complete) {
+                complete();
+            } else {
+                reply("426 Connection closed; transfer aborted");
+            }
+        }
+
+        // Read a file from the data connection until the client closes it, and
+        // replace whatever was at the path. Uploads are taken in stream mode only.
+        private void store(String argument) throws IOException {
+            String path = resolve(directory, argument);
+            Entry existing = entries.get(path);
+            Entry parent = entries.get(path.substring(0, Math.max(1, path.lastIndexOf('/'))));
+            if ((existing != null && existing.isDirectory()) || parent == null || !parent.isDirectory()) {
+                dropPassive();
+                reply("553 " + argument + ": cannot store here");
+                return;
+            }
+            if (compressed) {
+                dropPassive();
+                reply("504 STOR is only taken in MODE S");
+                return;
+            }
+            SocketChannel data = openData();
+            if (data == null) return;
+            reply("150 ready for " + argument);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                while (data.read(buffer) >= 0) {
+                    content.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            } finally {
+                closeQuietly(data);
+            }
+            entries.put(path, Entry.file(content.toByteArray(), content.size()));
+            complete();
+        }
+
+        // return where the bytes of a transfer go: data itself, or in MODE Z a
+        // deflater over it that closes it once the stream is finished
+        private WritableByteChannel sink(SocketChannel data) {
+            if (!compressed) return data;
+            OutputStream deflater = new DeflaterOutputStream(new BufferedOutputStream(Channels.newOutputStream(data), CHUNK_SIZE));
+            return Channels.newChannel(deflater);
+        }
+
+        // Start listening for the data connection of the next transfer, on a
+        // new port so nothing left from an earlier PASV can be taken for it
+        // return the port listened on
+        private int listen() throws IOException {
+            dropPassive();
+            passive = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            return passive.socket().getLocalPort();
+        }
+
+        // Stop listening, dropping any data connection made but not accepted,
+        // as after a transfer that was refused
+        private void dropPassive() {
+            if (passive != null) {
+                closeQuietly(passive);
+                passive = null;
+            }
+        }
+
+        // One data connection per PASV, as most servers have it
+        // return the data connection the client made after PASV, null if there wasn't a PASV
+        private SocketChannel openData() throws IOException {
+            if (passive == null) {
+                reply("425 use PASV first");
+                return null;
+            }
+            try {
+                return passive.accept();
+            } finally {
+                dropPassive();
+            }
+        }
+
+        // Send the entry from offset on, at the bandwidth limit and up to the drop point
+        // return false if the connection was dropped or the client hung up first
+        private boolean send(WritableByteChannel data, Entry entry, long offset) {
+            long start = System.nanoTime();
+            long sent = 0;
+            long drop = dropOnce.getAndSet(-1);
+            if (drop < 0) drop = dropAfter;
+            try {
+                while (offset + sent < entry.size) {
+                    long limit = bandwidth;
+                    int n = (int) Math.min(CHUNK_SIZE, entry.size - offset - sent);
+                    if (limit > 0) n = (int) Math.max(1, Math.min(n, limit / 50));
+                    if (drop >= 0) {
+                        if (sent >= drop) return false;
+                        n = (int) Math.min(n, drop - sent);
+                    }
+                    ByteBuffer chunk = entry.content != null
+                            ? ByteBuffer.wrap(entry.content, (int) (offset + sent), n)
+                            : ByteBuffer.wrap(PATTERN, (int) ((offset + sent) % PERIOD), n);
+                    while (chunk.hasRemaining()) {
+                        data.write(chunk);
+                    }
+                    sent += n;
+                    bytesSent.addAndGet(n);
+                    if (limit > 0) {
+                        // sleep until the bytes sent so far are due at the limit
+                        pause((sent * 1000000000L / limit - (System.nanoTime() - start)) / 1000000);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void complete() throws IOException {
+            pause(completionDelayMillis);
+            reply("226 Transfer complete");
+        }
+
+        private void reply(String lines) throws IOException {
+            pause(latencyMillis);
+            out.write(lines);
+            out.write("\r\n");
+            out.flush();
+        }
+    }
+
+    // "-rw-r--r-- 1 ftp ftp 1234 Oct 17 12:34 name"
+    private static String listLine(String name, Entry entry) {
+        return (entry.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--") + " 1 ftp ftp "
+                + (entry.isDirectory() ? 4096 : entry.size) + " "
+                + LIST_TIME.format(Instant.ofEpochMilli(entry.modified)) + " " + name + "\r\n";
+    }
+
+    // "type=file;size=1234;modify=20261017123456; name"
+    private static String factLine(String name, Entry entry) {
+        return (entry.isDirectory() ? "type=dir;" : "type=file;size=" + entry.size + ";")
+                + "modify=" + FACT_TIME.format(Instant.ofEpochMilli(entry.modified)) + "; " + name + "\r\n";
+    }
+
+    // return the SHA-256 of a file's content, in hex
+    private static String sha256(Entry entry) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (entry.content != null) {
+                digest.update(entry.content);
+            } else {
+                for (long done = 0; done < entry.size; ) {
+                    int n = (int) Math.min(CHUNK_SIZE, entry.size - done);
+                    digest.update(PATTERN, (int) (done % PERIOD), n);
+                    done += n;
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // return path as an absolute path without ".", ".." or empty parts
+    private static String resolve(String directory, String path) {
+        String full = path.startsWith("/") ? path : directory + "/" + path;
+        Deque<String> parts = new ArrayDeque<String>();
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) continue;
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return "/" + String.join("/", parts);
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+//            e.printStackTrace();
+        }
+    }
+
+    // A file, with its content or only its size, or a directory
+    private static class Entry {
+        final byte[] content;
+        final long size;
+        volatile long modified = System.currentTimeMillis();
+
+        private Entry(byte[] content, long size) {
+            this.content = content;
+            this.size = size;
+        }
+
+        static Entry file(byte[] content, long size) {
+            return new Entry(content, size);
+        }
+
+        static Entry directory() {
+            return new Entry(null, -1);
+        }
+
+        boolean isDirectory() {
+            return size < 0;
+        }
+    }
+
+    // Usage: LoopbackServer [-l MILLIS] [-b BYTES_PER_SEC] [-d BYTES] [-s MILLIS] PORT [PATH=SIZE ...]
+    // -l reply latency, -b bandwidth per data connection, -d drop data
+    // connections after BYTES, -s delay before 226. Without PATH=SIZE
+    // arguments a small sample tree is served.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int i = 0;
+        long latency = 0, rate = 0, drop = -1, delay = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i += 2) {
+                long value = Long.parseLong(args[i + 1]);
+                if (args[i].equals("-l")) latency = value;
+                else if (args[i].equals("-b")) rate = value;
+                else if (args[i].equals("-d")) drop = value;
+                else if (args[i].equals("-s")) delay = value;
+                else throw new IllegalArgumentException(args[i]);
+            }
+            if (i >= args.length) throw new IllegalArgumentException("no port");
+            LoopbackServer server = new LoopbackServer(Integer.parseInt(args[i++]));
+            server.setLatency(latency);
+            server.setBandwidth(rate);
+            server.setDropAfter(drop);
+            server.setCompletionDelay(delay);
+            if (i == args.length) {
+                server.addFile("/readme.txt", "Served by LoopbackServer\n".getBytes(StandardCharsets.UTF_8));
+                server.addFile("/pub/10MB.bin", 10L * 1024 * 1024);
+                server.addFile("/pub/1GB.bin", 1024L * 1024 * 1024);
+            }
+            for (; i < args.length; i++) {
+                int equals = args[i].lastIndexOf('=');
+                server.addFile(args[i].substring(0, equals), Long.parseLong(args[i].substring(equals + 1)));
+            }
+            System.out.println("Serving on " + server.getHost() + " port " + server.getPort());
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (RuntimeException e) {
+            System.out.println("Usage: LoopbackServer [-l MILLIS] [-b BYTES_PER_SEC] [-d BYTES] [-s MILLIS] PORT [PATH=SIZE ...]");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import harness.LoopbackServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+//
+// Drives FtpClient against harness.LoopbackServer: several clients pulling
+// at once, operations queued on one client running in the order they were
+// made, and a refused command failing its own future without stopping the
+// ones queued behind it.
+//
+
+public class FtpClientTest {
+    static final int CLIENTS = 8;
+
+    private final LoopbackServer server;
+    private final Path directory;
+
+    private FtpClientTest() throws IOException {
+        server = new LoopbackServer();
+        for (int i = 0; i < CLIENTS; i++) {
+            server.addFile("/pub/file-" + i + ".bin", 256L * 1024 * i + 7);
+        }
+        directory = Files.createTempDirectory("csftp-client");
+    }
+
+    public static void main(String[] args) throws Exception {
+        FtpClientTest test = new FtpClientTest();
+        try {
+            test.concurrentClients();
+            test.failureInQueue();
+        } finally {
+            test.close();
+        }
+        System.out.println("FtpClientTest passed");
+    }
+
+    void concurrentClients() throws Exception {
+        List<CompletableFuture<Long>> downloads = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String name = "file-" + i + ".bin";
+            String local = directory.resolve(name).toString();
+            // queued without waiting: login, cwd and retrieve must still run in order
+            downloads.add(FtpClient.connect(server.getHost(), server.getPort()).thenCompose(client -> {
+                client.login("test", "test");
+                client.cwd("/pub");
+                CompletableFuture<Long> download = client.retrieve(name, local);
+                client.quit();
+                return download;
+            }));
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            check(downloads.get(i).get() == server.getSize("/pub/file-" + i + ".bin"), "file-" + i + ".bin length");
+            check(Arrays.equals(Files.readAllBytes(directory.resolve("file-" + i + ".bin")),
+                    server.getContent("/pub/file-" + i + ".bin")), "file-" + i + ".bin content");
+        }
+    }
+
+    void failureInQueue() throws Exception {
+        try (FtpClient client = FtpClient.connect(server.getHost(), server.getPort()).get()) {
+            client.login("test", "test");
+            CompletableFuture<Void> refused = client.cwd("/missing");
+            CompletableFuture<List<String>> listing = client.cwd("/pub").thenCompose(ignored -> client.list());
+            CompletableFuture<String> pwd = client.pwd();
+            try {
+                refused.get();
+                check(false, "CWD to a missing directory is refused");
+            } catch (ExecutionException e) {
+                check(e.getCause() instanceof FtpException, "refused CWD fails with an FtpException");
+            }
+            boolean listed = false;
+            for (String line : listing.get()) {
+                if (line.endsWith("file-1.bin")) listed = true;
+            }
+            check(listed, "LIST after the refused CWD");
+            check(pwd.get().equals("/pub"), "PWD after the refused CWD");
+        }
+    }
+
+    private void close() throws IOException {
+        server.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import harness.LoopbackServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+//
+// Drives FtpSession against harness.LoopbackServer: plain and MODE Z
+// downloads, uploads, MLSD listings, HASH verification, a refused RETR
+// followed by one that works, and resuming onto the same or a replaced file.
+// Run with 'make test'; a failed check ends the run with exit status 1.
+//
+
+public class LoopbackServerTest {
+    private final LoopbackServer server;
+    private final Path directory;
+
+    private LoopbackServerTest() throws IOException {
+        server = new LoopbackServer();
+        server.addFile("/pub/pattern.bin", 3L * 1024 * 1024 + 17);
+        server.addFile("/pub/readme.txt", "Served by LoopbackServer\n".getBytes("UTF-8"));
+        directory = Files.createTempDirectory("csftp-test");
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoopbackServerTest test = new LoopbackServerTest();
+        try {
+            test.retrieve();
+            test.retrieveCompressed();
+            test.store();
+            test.listMlsd();
+            test.verifyHash();
+            test.retrieveAfterRefusal();
+            test.resume();
+        } finally {
+            test.close();
+        }
+        System.out.println("LoopbackServerTest passed");
+    }
+
+    void retrieve() throws IOException {
+        try (FtpSession session = login()) {
+            session.binary();
+            String local = local("pattern.bin");
+            check(session.retrieve("/pub/pattern.bin", local) == server.getSize("/pub/pattern.bin"), "retrieve length");
+            checkContent(local, "/pub/pattern.bin");
+        }
+    }
+
+    void retrieveCompressed() throws IOException {
+        try (FtpSession session = login()) {
+            session.binary();
+            session.setCompression(true);
+            String local = local("compressed.bin");
+            check(session.retrieve("/pub/pattern.bin", local) == server.getSize("/pub/pattern.bin"), "MODE Z length");
+            checkContent(local, "/pub/pattern.bin");
+        }
+    }
+
+    void store() throws IOException {
+        byte[] content = new byte[1024 * 1024 + 3];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        Path local = directory.resolve("upload.bin");
+        Files.write(local, content);
+        try (FtpSession session = login()) {
+            session.binary();
+            check(session.store(local.toString(), "/pub/upload.bin") == content.length, "store length");
+        }
+        check(Arrays.equals(server.getContent("/pub/upload.bin"), content), "stored content");
+    }
+
+    void listMlsd() throws IOException {
+        try (FtpSession session = login()) {
+            session.changeDirectory("/pub");
+            List<RemoteFile> files = session.listFiles();
+            RemoteFile found = null;
+            for (RemoteFile file : files) {
+                if (file.getName().equals("readme.txt")) found = file;
+            }
+            check(found != null && found.isFile(), "MLSD lists readme.txt");
+            check(found.getSize() == server.getSize("/pub/readme.txt"), "MLSD size");
+            check(found.getModified() > 0, "MLSD modify time");
+        }
+    }
+
+    void verifyHash() throws IOException {
+        try (FtpSession session = login()) {
+            session.binary();
+            check("SHA-256".equals(session.serverChecksum()), "HASH SHA-256 offered");
+            Checksums checksums = new Checksums("SHA-256");
+            session.retrieve("/pub/pattern.bin", local("hashed.bin"), checksums);
+            session.verify("/pub/pattern.bin", "SHA-256", checksums.hex("SHA-256"));
+            try {
+                session.verify("/pub/pattern.bin", "SHA-256", "00" + checksums.hex("SHA-256").substring(2));
+                check(false, "a wrong SHA-256 is caught");
+            } catch (ChecksumMismatchException e) {
+                // expected
+            }
+        }
+    }
+
+    void retrieveAfterRefusal() throws IOException {
+        try (FtpSession session = login()) {
+            session.binary();
+            try {
+                session.retrieve("/pub/missing.bin", local("missing.bin"));
+                check(false, "a missing file is refused");
+            } catch (FtpException e) {
+                // expected
+            }
+            check(!Files.exists(directory.resolve("missing.bin")), "nothing created for a refused RETR");
+            String local = local("again.bin");
+            session.retrieve("/pub/readme.txt", local);
+            checkContent(local, "/pub/readme.txt");
+        }
+    }
+
+    void resume() throws IOException {
+        byte[] first = new byte[2 * 1024 * 1024];
+        Arrays.fill(first, (byte) 'a');
+        server.addFile("/pub/resume.bin", first);
+        String local = local("resume.bin");
+        try (FtpSession session = login()) {
+            interrupted(session, local);
+            check(session.resume("/pub/resume.bin", local) == first.length / 2, "resumed from the checkpoint");
+            checkContent(local, "/pub/resume.bin");
+
+            // the same name and size, but another file
+            interrupted(session, local);
+            byte[] second = first.clone();
+            Arrays.fill(second, (byte) 'b');
+            server.addFile("/pub/resume.bin", second);
+            server.setModified("/pub/resume.bin", System.currentTimeMillis() + 60000);
+            check(session.resume("/pub/resume.bin", local) == 0, "a replaced file starts over");
+            checkContent(local, "/pub/resume.bin");
+        }
+        check(!Files.exists(directory.resolve("resume.bin" + Checkpoint.SUFFIX)), "checkpoint removed");
+    }
+
+    // Start a resumable download that the server cuts off halfway
+    private void interrupted(FtpSession session, String local) throws IOException {
+        Files.deleteIfExists(Paths.get(local));
+        server.setDropAfter(server.getSize("/pub/resume.bin") / 2);
+        try {
+            session.resume("/pub/resume.bin", local);
+            check(false, "the transfer is cut off");
+        } catch (FtpException e) {
+            // 426
+        } finally {
+            server.setDropAfter(-1);
+        }
+        check(Checkpoint.load(local) != null, "checkpoint kept after the cut");
+    }
+
+    private FtpSession login() throws IOException {
+        FtpSession session = FtpSession.open(server.getHost(), server.getPort());
+        session.login("test", "test");
+        return session;
+    }
+
+    private String local(String name) {
+        return directory.resolve(name).toString();
+    }
+
+    private void checkContent(String local, String remote) throws IOException {
+        check(Arrays.equals(Files.readAllBytes(Paths.get(local)), server.getContent(remote)),
+                local + " matches " + remote);
+    }
+
+    private void close() throws IOException {
+        server.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import harness.LoopbackServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+//
+// 'get -s' against harness.LoopbackServer: all segments arriving, and one
+// segment cut off partway, which must leave no local file behind for a
+// later 'get -c' to mistake for a complete one.
+//
+
+public class SegmentedGetTest {
+    static final long SIZE = 8L * 1024 * 1024 + 5;
+
+    public static void main(String[] args) throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        server.addFile("/pub/segmented.bin", SIZE);
+        Path local = Files.createTempFile("csftp-segmented", ".bin");
+        SessionPool pool = new SessionPool();
+        SessionFactory sessions = new SessionFactory(pool, null, server.getHost(), server.getPort(),
+                "test", "test", "/pub");
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        try {
+            check(new SegmentedGet(sessions, 4, out).run("segmented.bin", local) == SIZE, "all segments");
+            check(Arrays.equals(Files.readAllBytes(local), server.getContent("/pub/segmented.bin")), "content");
+
+            server.setDropOnce(SIZE / 8);
+            try {
+                new SegmentedGet(sessions, 4, out).run("segmented.bin", local);
+                check(false, "a cut off segment fails the download");
+            } catch (IOException e) {
+                // expected
+            }
+            check(!Files.exists(local), "no local file left after a failed segment");
+
+            check(new SegmentedGet(sessions, 4, out).run("segmented.bin", local) == SIZE, "again after the failure");
+            check(Arrays.equals(Files.readAllBytes(local), server.getContent("/pub/segmented.bin")), "content again");
+        } finally {
+            Files.deleteIfExists(local);
+            pool.close();
+            server.close();
+        }
+        System.out.println("SegmentedGetTest passed");
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
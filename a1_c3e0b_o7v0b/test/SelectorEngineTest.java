@@ -0,0 +1,145 @@
+import harness.LoopbackServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+//
+// Drives SelectorEngine against harness.LoopbackServer: many downloads at
+// once, EPSV refused so that PASV has to be used, a refused RETR and CWD,
+// and 'mget -e' going through MultiGet.run(glob, engine).
+//
+
+public class SelectorEngineTest {
+    static final int FILES = 20;
+
+    private final LoopbackServer server;
+    private final Path directory;
+    private final SelectorEngine engine;
+
+    private SelectorEngineTest() throws IOException {
+        server = new LoopbackServer();
+        for (int i = 0; i < FILES; i++) {
+            server.addFile("/pub/small-" + i + ".bin", 1000L * i + 1);
+        }
+        server.addFile("/pub/large.bin", 3L * 1024 * 1024 + 17);
+        directory = Files.createTempDirectory("csftp-selector");
+        engine = new SelectorEngine();
+    }
+
+    public static void main(String[] args) throws Exception {
+        SelectorEngineTest test = new SelectorEngineTest();
+        try {
+            test.retrieveMany();
+            test.retrieveWithoutEpsv();
+            test.refused();
+            test.multiGet();
+        } finally {
+            test.close();
+        }
+        System.out.println("SelectorEngineTest passed");
+    }
+
+    void retrieveMany() throws Exception {
+        List<CompletableFuture<Long>> downloads = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < FILES; i++) {
+            downloads.add(retrieve("/pub", "small-" + i + ".bin"));
+        }
+        downloads.add(retrieve(null, "/pub/large.bin"));
+        for (int i = 0; i < FILES; i++) {
+            check(downloads.get(i).get() == server.getSize("/pub/small-" + i + ".bin"), "small-" + i + ".bin length");
+            checkContent("small-" + i + ".bin", "/pub/small-" + i + ".bin");
+        }
+        check(downloads.get(FILES).get() == server.getSize("/pub/large.bin"), "large.bin length");
+        checkContent("large.bin", "/pub/large.bin");
+    }
+
+    void retrieveWithoutEpsv() throws Exception {
+        server.setRefuseEpsv(true);
+        try {
+            Files.deleteIfExists(directory.resolve("large.bin"));
+            check(retrieve("/pub", "large.bin").get() == server.getSize("/pub/large.bin"), "PASV length");
+            checkContent("large.bin", "/pub/large.bin");
+        } finally {
+            server.setRefuseEpsv(false);
+        }
+    }
+
+    void refused() throws Exception {
+        checkRefused(retrieve("/pub", "missing.bin"), "a missing file is refused");
+        check(!Files.exists(directory.resolve("missing.bin")), "nothing created for a refused RETR");
+        checkRefused(retrieve("/missing", "small-1.bin"), "a missing directory is refused");
+    }
+
+    void multiGet() throws Exception {
+        // MultiGet downloads into the working directory, as 'mget' does
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            String name = "selector-test-" + i + ".txt";
+            server.addFile("/pub/" + name, ("file " + i + "\n").getBytes("UTF-8"));
+            names.add(name);
+        }
+        SessionPool pool = new SessionPool();
+        SessionFactory sessions = new SessionFactory(pool, null, server.getHost(), server.getPort(),
+                "test", "test", "/pub");
+        PrintStream out = new PrintStream(new ByteArrayOutputStream());
+        try {
+            check(new MultiGet(sessions, 3, out).run("selector-test-*.txt", engine) == names.size(), "mget -e count");
+            for (String name : names) {
+                check(Arrays.equals(Files.readAllBytes(Paths.get(name)), server.getContent("/pub/" + name)),
+                        name + " matches");
+            }
+        } finally {
+            for (String name : names) {
+                Files.deleteIfExists(Paths.get(name));
+            }
+            pool.close();
+        }
+    }
+
+    private CompletableFuture<Long> retrieve(String remoteDirectory, String remote) {
+        Path local = directory.resolve(remote.substring(remote.lastIndexOf('/') + 1));
+        return engine.retrieve(server.getHost(), server.getPort(), "test", "test", remoteDirectory, remote, local);
+    }
+
+    private void checkRefused(CompletableFuture<Long> download, String what) throws InterruptedException {
+        try {
+            download.get();
+            check(false, what);
+        } catch (ExecutionException e) {
+            check(e.getCause() instanceof FtpException, what + " with an FtpException");
+        }
+    }
+
+    private void checkContent(String local, String remote) throws IOException {
+        check(Arrays.equals(Files.readAllBytes(directory.resolve(local)), server.getContent(remote)),
+                local + " matches " + remote);
+    }
+
+    private void close() throws IOException {
+        engine.close();
+        server.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -1,66 +1,406 @@
+import exception.MalformedResponseException;
 
-import java.net.InetAddress;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 
+/**
+ * A view of a DNS response in wire format.
+ * <p>
+ * {@link #wrap} reads the header and walks the question and the resource
+ * records once, keeping no more than each record's offsets, type and ttl.
+ * Nothing is copied out of the buffer: names and values are only decoded when
+ * asked for, following compression pointers a bounded number of times.
+ * A DNSResponse is meant to be reused, wrapping one response after another,
+ * and only allocates when a response has more records than any before it.
+ * <p>
+ * Offsets are from the start of the message, as compression pointers are.
+ */
+public class DNSResponse {
 
+    static final int HEADER_LENGTH = 12;
+    static final int MAX_NAME_LENGTH = 255;  // in wire format (RFC 1035)
+    static final int MAX_POINTERS = 64;      // compression pointers followed in one name
 
-// Lots of the action associated with handling a DNS query is processing 
-// the response. Although not required you might find the following skeleton of
-// a DNSreponse helpful. The class below has bunch of instance data that typically needs to be 
-// parsed from the response. If you decide to use this class keep in mind that it is just a 
-// suggestion and feel free to add or delete methods to better suit your implementation as 
-// well as instance variables.
+    // Record types
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_AAAA = 28;
 
+    private ByteBuffer data;
+    private int base;   // index of the message in data
+    private int length; // length of the message
 
+    private int queryID;                   // this is for the response it must match the one in the request
+    private boolean response = false;      // the QR bit
+    private boolean authoritative = false; // Is this an authoritative record
+    private int rcode = 0;
+    private int questionType = 0;
+    private int answerCount = 0;           // number of answers
+    private int nsCount = 0;               // number of nscount response records
+    private int additionalCount = 0;       // number of additional (alternate) response records
+    private boolean decoded = false;       // Was this response successfully decoded
 
-public class DNSResponse {
-    private int queryID;                  // this is for the response it must match the one in the request 
-    private int answerCount = 0;          // number of answers  
-    private boolean decoded = false;      // Was this response successfully decoded
-    private int nsCount = 0;              // number of nscount response records
-    private int additionalCount = 0;      // number of additional (alternate) response records
-    private boolean authoritative = false;// Is this an authoritative record
+    // Per record, in the order of the message: where its owner name and its data start
+    private int[] nameOffsets = new int[16];
+    private int[] dataOffsets = new int[16];
+    private int[] dataLengths = new int[16];
+    private int[] types = new int[16];
+    private int[] ttls = new int[16];
 
-    // Note you will almost certainly need some additional instance variables.
+    /**
+     * Read a response, replacing whatever was read before. The bytes between
+     * data's position and limit must stay as they are while the response is used.
+     *
+     * @param data the message, from its position to its limit
+     * @return this
+     * @throws MalformedResponseException if the message ends before its last record does
+     */
+    public DNSResponse wrap(ByteBuffer data) throws MalformedResponseException {
+        this.data = data;
+        this.base = data.position();
+        this.length = data.remaining();
+        this.decoded = false;
+        if (length < HEADER_LENGTH) throw new MalformedResponseException("Response shorter than its header");
 
-    // When in trace mode you probably want to dump out all the relevant information in a response
+        queryID = u16(0);
+        int flags = u16(2);
+        response = (flags & 0x8000) != 0;
+        authoritative = (flags & 0x0400) != 0;
+        rcode = flags & 0xf;
+        int questionCount = u16(4);
+        answerCount = u16(6);
+        nsCount = u16(8);
+        additionalCount = u16(10);
 
-	void dumpResponse() {
-		
+        int offset = HEADER_LENGTH;
+        questionType = 0;
+        for (int q = 0; q < questionCount; q++) {
+            offset = skipName(offset);
+            check(offset + 4);
+            if (q == 0) questionType = u16(offset);
+            offset += 4; // QTYPE, QCLASS
+        }
 
+        int records = recordCount();
+        // every record takes at least 11 bytes, so a header claiming more cannot make the arrays grow
+        if (records > (length - offset) / 11) {
+            throw new MalformedResponseException("Response truncated at " + length + " bytes");
+        }
+        if (records > types.length) grow(records);
+        for (int i = 0; i < records; i++) {
+            nameOffsets[i] = offset;
+            offset = skipName(offset);
+            check(offset + 10);
+            types[i] = u16(offset);
+            ttls[i] = u16(offset + 4) << 16 | u16(offset + 6);
+            if (ttls[i] < 0) ttls[i] = 0; // top bit set, to be taken as 0 (RFC 2181 8)
+            dataLengths[i] = u16(offset + 8);
+            dataOffsets[i] = offset + 10;
+            offset += 10 + dataLengths[i];
+            check(offset);
+        }
+        decoded = true;
+        return this;
+    }
 
-	}
+    public int getQueryID() {
+        return queryID;
+    }
 
-    // The constructor: you may want to add additional parameters, but the two shown are 
-    // probably the minimum that you need.
+    /**
+     * @return true if the QR bit is set
+     */
+    public boolean isResponse() {
+        return response;
+    }
 
-	public DNSResponse (byte[] data, int len) {
-	    
-	    // The following are probably some of the things 
-	    // you will need to do.
-	    // Extract the query ID
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
 
-	    // Make sure the message is a query response and determine
-	    // if it is an authoritative response or note
+    public int getRCODE() {
+        return rcode;
+    }
 
-	    // determine answer count
+    /**
+     * @return the QTYPE of the first question, 0 if there is none
+     */
+    public int getQuestionType() {
+        return questionType;
+    }
 
-	    // determine NS Count
+    public int getAnswerCount() {
+        return answerCount;
+    }
 
-	    // determine additional record count
+    public int getNsCount() {
+        return nsCount;
+    }
 
-	    // Extract list of answers, name server, and additional information response 
-	    // records
-	}
+    public int getAdditionalCount() {
+        return additionalCount;
+    }
 
+    /**
+     * @return true once wrap() has read a whole response
+     */
+    public boolean isDecoded() {
+        return decoded;
+    }
 
-    // You will probably want a methods to extract a compressed FQDN, IP address
-    // cname, authoritative DNS servers and other values like the query ID etc.
+    /**
+     * @return the number of records, answers first, then name servers, then additional records
+     */
+    public int recordCount() {
+        return answerCount + nsCount + additionalCount;
+    }
 
+    /**
+     * @param i the index of a record
+     * @return its type code
+     */
+    public int type(int i) {
+        return types[i];
+    }
 
-    // You will also want methods to extract the response records and record
-    // the important values they are returning. Note that an IPV6 reponse record
-    // is of type 28. It probably wouldn't hurt to have a response record class to hold
-    // these records. 
-}
+    /**
+     * @param i the index of a record
+     * @return its ttl, 0 for one over 2^31 - 1
+     */
+    public int ttl(int i) {
+        return ttls[i];
+    }
+
+    /**
+     * @param i the index of a record
+     * @return the name of its type as DNSlookup.Record has it: "A", "AAAA", "NS",
+     * "CN" for CNAME, "6" for SOA, and "" for any other type
+     */
+    public String typeName(int i) {
+        switch (types[i]) {
+            case TYPE_A:
+                return "A";
+            case TYPE_NS:
+                return "NS";
+            case TYPE_CNAME:
+                return "CN";
+            case TYPE_SOA:
+                return "6";
+            case TYPE_AAAA:
+                return "AAAA";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * @param i the index of a record
+     * @return its owner name, without the trailing dot
+     */
+    public String name(int i) throws MalformedResponseException {
+        StringBuilder sb = new StringBuilder();
+        appendName(nameOffsets[i], sb);
+        return sb.toString();
+    }
+
+    /**
+     * Compare a record's owner name with a name, ignoring case, without decoding it
+     *
+     * @param i    the index of a record
+     * @param name a name without the trailing dot, "" for the root
+     * @return true if the record is for name
+     */
+    public boolean nameEquals(int i, String name) throws MalformedResponseException {
+        int offset = nameOffsets[i];
+        int nameLength = 0;
+        int pointers = 0;
+        int matched = 0; // characters of name matched so far
+        while (true) {
+            int label = u8(offset);
+            if (isPointer(label)) {
+                if (++pointers > MAX_POINTERS) throw new MalformedResponseException("Compression loop");
+                offset = (label & 0x3f) << 8 | u8(offset + 1);
+                continue;
+            }
+            if (label == 0) return matched == name.length();
+            if (label > 63) throw new MalformedResponseException("Bad label length " + label);
+            nameLength += label + 1;
+            if (nameLength > MAX_NAME_LENGTH) throw new MalformedResponseException("Name too long");
+            check(offset + 1 + label);
+            if (matched > 0 && (matched == name.length() || name.charAt(matched++) != '.')) return false;
+            if (matched + label > name.length()) return false;
+            for (int j = 1; j <= label; j++) {
+                if (Character.toLowerCase((char) u8(offset + j)) != Character.toLowerCase(name.charAt(matched++))) {
+                    return false;
+                }
+            }
+            offset += 1 + label;
+        }
+    }
+
+    /**
+     * @param i the index of a record
+     * @return its value as DNSlookup.Record has it: the address of an A or AAAA
+     * record, the name an NS or CNAME record points to, "----" for an SOA, and
+     * "" for any other type
+     */
+    public String value(int i) throws MalformedResponseException {
+        switch (types[i]) {
+            case TYPE_A:
+            case TYPE_AAAA:
+            case TYPE_NS:
+            case TYPE_CNAME: {
+                StringBuilder sb = new StringBuilder();
+                appendValue(i, sb);
+                return sb.toString();
+            }
+            case TYPE_SOA:
+                return "----";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Append the value of an A, AAAA, NS or CNAME record
+     *
+     * @param i  the index of the record
+     * @param sb where to append it
+     */
+    public void appendValue(int i, StringBuilder sb) throws MalformedResponseException {
+        int offset = dataOffsets[i];
+        switch (types[i]) {
+            case TYPE_A:
+                if (dataLengths[i] != 4) throw new MalformedResponseException("A record of " + dataLengths[i] + " bytes");
+                for (int j = 0; j < 4; j++) {
+                    if (j > 0) sb.append('.');
+                    sb.append(u8(offset + j));
+                }
+                break;
+            case TYPE_AAAA:
+                if (dataLengths[i] != 16) throw new MalformedResponseException("AAAA record of " + dataLengths[i] + " bytes");
+                for (int j = 0; j < 16; j += 2) {
+                    if (j > 0) sb.append(':');
+                    sb.append(Integer.toHexString(u16(offset + j)));
+                }
+                break;
+            case TYPE_NS:
+            case TYPE_CNAME:
+                appendName(offset, sb);
+                break;
+            default:
+                break;
+        }
+    }
 
+    /**
+     * Append the name at an offset, labels separated by dots and without the trailing one
+     *
+     * @param offset where the name starts
+     * @param sb     where to append it
+     * @throws MalformedResponseException if the name runs past the message, is longer than
+     *                                    MAX_NAME_LENGTH, or follows more than MAX_POINTERS pointers
+     */
+    public void appendName(int offset, StringBuilder sb) throws MalformedResponseException {
+        int nameLength = 0;
+        int pointers = 0;
+        while (true) {
+            int label = u8(offset);
+            if (isPointer(label)) {
+                if (++pointers > MAX_POINTERS) throw new MalformedResponseException("Compression loop");
+                offset = (label & 0x3f) << 8 | u8(offset + 1);
+                continue;
+            }
+            if (label == 0) return;
+            if (label > 63) throw new MalformedResponseException("Bad label length " + label);
+            nameLength += label + 1;
+            if (nameLength > MAX_NAME_LENGTH) throw new MalformedResponseException("Name too long");
+            check(offset + 1 + label);
+            if (nameLength > label + 1) sb.append('.');
+            for (int j = 1; j <= label; j++) {
+                sb.append((char) u8(offset + j));
+            }
+            offset += 1 + label;
+        }
+    }
 
+    /**
+     * When in trace mode, dump out the header and every record
+     *
+     * @param trace where to print it
+     */
+    void dumpResponse(PrintStream trace) throws MalformedResponseException {
+        trace.printf("Response ID: %d Authoritative = %b\n", queryID, authoritative);
+        int records = recordCount();
+        for (int k = 0; k < records; k++) {
+            if (k == 0) {
+                trace.printf("  Answers %d\n", answerCount);
+            }
+            if (k == answerCount) {
+                trace.printf("  Nameservers %d\n", nsCount);
+            }
+            if (k == answerCount + nsCount) {
+                trace.printf("  Additional Information %d\n", additionalCount);
+            }
+            trace.format("       %-30s %-10d %-4s %s\n", name(k), ttl(k), typeName(k), value(k));
+            if (k == answerCount - 1 && nsCount == 0 && additionalCount == 0) {
+                trace.printf("  Nameservers %d\n", 0);
+            }
+            if (k == answerCount + nsCount - 1 && additionalCount == 0) {
+                trace.printf("  Additional Information %d\n", 0);
+            }
+        }
+    }
+
+    /**
+     * @return the offset just past the name at offset, whose own labels are
+     * checked but whose pointer, if any, is not followed
+     */
+    private int skipName(int offset) throws MalformedResponseException {
+        int nameLength = 0;
+        while (true) {
+            int label = u8(offset);
+            if (isPointer(label)) {
+                check(offset + 2);
+                return offset + 2;
+            }
+            if (label == 0) return offset + 1;
+            if (label > 63) throw new MalformedResponseException("Bad label length " + label);
+            nameLength += label + 1;
+            if (nameLength > MAX_NAME_LENGTH) throw new MalformedResponseException("Name too long");
+            offset += 1 + label;
+        }
+    }
+
+    private void grow(int records) {
+        int size = Math.max(records, types.length * 2);
+        nameOffsets = new int[size];
+        dataOffsets = new int[size];
+        dataLengths = new int[size];
+        types = new int[size];
+        ttls = new int[size];
+    }
+
+    private static boolean isPointer(int label) {
+        return (label & 0xc0) == 0xc0;
+    }
+
+    /**
+     * Make sure the message is at least end bytes long
+     */
+    private void check(int end) throws MalformedResponseException {
+        if (end > length) throw new MalformedResponseException("Response truncated at " + length + " bytes");
+    }
+
+    private int u8(int offset) throws MalformedResponseException {
+        check(offset + 1);
+        return data.get(base + offset) & 0xff;
+    }
+
+    private int u16(int offset) throws MalformedResponseException {
+        check(offset + 2);
+        return (data.get(base + offset) & 0xff) << 8 | (data.get(base + offset + 1) & 0xff);
+    }
+}
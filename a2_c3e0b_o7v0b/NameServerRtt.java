@@ -0,0 +1,124 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Smoothed round trip times of name servers, by address, used to choose which
+ * server to ask first and how long to give it before asking another as well.
+ * <p>
+ * Estimates are kept as TCP keeps them (RFC 6298): a moving average of the
+ * samples and of their deviation from it. A server that lets a query time out
+ * has its estimate doubled, so it drops behind the servers that answer.
+ * Servers not heard from yet start at INITIAL_RTT, low enough that they get
+ * tried ahead of slow ones.
+ */
+public class NameServerRtt {
+
+    static final long INITIAL_RTT = 100000000L;   // 100 ms, in nanoseconds
+    static final long MIN_HEDGE_DELAY = 20000000L; // 20 ms
+    static final long MAX_RTT = Resolver.TIMEOUT * 1000000L;
+
+    private final ConcurrentMap<InetAddress, Estimate> estimates = new ConcurrentHashMap<InetAddress, Estimate>();
+
+    /**
+     * @param servers name server addresses
+     * @return a copy of servers, fastest first, in their original order where there is no telling them apart
+     */
+    List<InetAddress> rank(List<InetAddress> servers) {
+        List<InetAddress> ranked = new ArrayList<InetAddress>(servers);
+        if (ranked.size() > 1) {
+            Collections.sort(ranked, new Comparator<InetAddress>() {
+                @Override
+                public int compare(InetAddress a, InetAddress b) {
+                    return Long.compare(srtt(a), srtt(b));
+                }
+            });
+        }
+        return ranked;
+    }
+
+    /**
+     * @param server a name server address
+     * @return how long to wait for it to answer before asking another server too,
+     * in nanoseconds: its smoothed RTT plus four deviations, as a retransmission timeout
+     */
+    long hedgeDelay(InetAddress server) {
+        Estimate e = estimates.get(server);
+        long delay = e == null ? INITIAL_RTT * 3 : e.timeout();
+        return Math.max(MIN_HEDGE_DELAY, Math.min(delay, MAX_RTT));
+    }
+
+    /**
+     * @param server a name server address
+     * @return its smoothed RTT in nanoseconds
+     */
+    long srtt(InetAddress server) {
+        Estimate e = estimates.get(server);
+        return e == null ? INITIAL_RTT : e.srtt();
+    }
+
+    /**
+     * Record how long a server took to answer
+     *
+     * @param server the server
+     * @param rtt    the round trip time, in nanoseconds
+     */
+    void sample(InetAddress server, long rtt) {
+        estimate(server).sample(Math.min(rtt, MAX_RTT));
+    }
+
+    /**
+     * Record that a server did not answer in time
+     *
+     * @param server the server
+     */
+    void timedOut(InetAddress server) {
+        estimate(server).backOff();
+    }
+
+    private Estimate estimate(InetAddress server) {
+        Estimate e = estimates.get(server);
+        if (e == null) {
+            Estimate created = new Estimate();
+            e = estimates.putIfAbsent(server, created);
+            if (e == null) e = created;
+        }
+        return e;
+    }
+
+    /**
+     * The estimate for one server
+     */
+    private static class Estimate {
+        private long srtt = -1;  // -1 until the first sample
+        private long rttvar = 0;
+
+        synchronized long srtt() {
+            return srtt < 0 ? INITIAL_RTT : srtt;
+        }
+
+        synchronized long timeout() {
+            return srtt < 0 ? INITIAL_RTT * 3 : srtt + 4 * rttvar;
+        }
+
+        synchronized void sample(long rtt) {
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                // gains of 1/4 for the deviation and 1/8 for the average
+                rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+                srtt += (rtt - srtt) / 8;
+            }
+        }
+
+        synchronized void backOff() {
+            srtt = Math.min(Math.max(srtt(), INITIAL_RTT) * 2, MAX_RTT);
+            rttvar = Math.max(rttvar, srtt / 2);
+        }
+    }
+}
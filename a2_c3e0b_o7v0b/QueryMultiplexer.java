@@ -0,0 +1,278 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends DNS queries over a small pool of non-blocking UDP sockets shared by
+ * every lookup, so any number of queries can be in flight without a socket or
+ * a blocked receive per query.
+ * <p>
+ * Queries are sent straight from the calling thread. One I/O thread waits on a
+ * Selector for responses and hands each to the query with the same socket and
+ * transaction ID, provided it came from the address the query went to; anything
+ * else is dropped. The same thread runs a timer wheel that fails queries left
+ * unanswered past their timeout with a SocketTimeoutException.
+ * <p>
+ * Responses are received straight into buffers kept for reuse: a response
+ * is handed over in the buffer it arrived in, and goes back to the spare ones
+ * when its query gives it back with {@link #release}.
+ */
+public class QueryMultiplexer implements Closeable {
+
+    static final int DEFAULT_SOCKETS = 4;
+
+    private static final long TICK_NANOS = 10000000L; // timer wheel resolution, 10 ms
+    private static final int WHEEL_SIZE = 512;       // slots, one turn is about 5 seconds
+    private static final int RECEIVE_BUFFER_SIZE = 65536; // the largest UDP datagram
+    private static final int MAX_SPARE_BUFFERS = 64;       // buffers kept beyond that are left to the GC
+
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+
+    // queries in flight, by channel index << 16 | transaction ID
+    private final ConcurrentMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+    // queries whose timeouts the I/O thread has yet to put on the wheel
+    private final Queue<Pending> scheduled = new ConcurrentLinkedQueue<Pending>();
+
+    // Timer wheel, only touched by the I/O thread: slot i holds the queries
+    // timing out in a tick that is i modulo WHEEL_SIZE
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Pending>[] wheel = new ArrayDeque[WHEEL_SIZE];
+    private long tick; // the next tick to expire, in units of TICK_NANOS since System.nanoTime's origin
+
+    // receive buffers given back by release()
+    private final Queue<ByteBuffer> spares = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger spareCount = new AtomicInteger();
+    private ByteBuffer receiveBuffer; // the next datagram goes here, only touched by the I/O thread
+
+    private volatile boolean closed = false;
+
+    public QueryMultiplexer() throws IOException {
+        this(DEFAULT_SOCKETS);
+    }
+
+    /**
+     * @param sockets the number of UDP sockets to spread queries over
+     */
+    public QueryMultiplexer(int sockets) throws IOException {
+        selector = Selector.open();
+        channels = new DatagramChannel[sockets];
+        for (int i = 0; i < sockets; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].configureBlocking(false);
+            channels[i].bind(null);
+            channels[i].register(selector, SelectionKey.OP_READ, i);
+        }
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<Pending>();
+        }
+        tick = System.nanoTime() / TICK_NANOS;
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "dns-multiplexer");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Send a query. Its transaction ID is chosen here, unique among the queries
+     * in flight on the same socket, and written into the first two bytes of query.
+     *
+     * @param query         the query, from offset 0
+     * @param length        the length of the query
+     * @param server        where to send it
+     * @param timeoutMillis how long to wait for the response
+     * @return the response, from its buffer's position to its limit, or a
+     * SocketTimeoutException or IOException; the buffer should be given
+     * back with {@link #release} once the response has been read
+     */
+    CompletableFuture<ByteBuffer> send(byte[] query, int length, InetSocketAddress server, long timeoutMillis) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+        if (closed) {
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+        int channel = Math.floorMod(nextChannel.getAndIncrement(), channels.length);
+        Pending p = new Pending(server, response, System.nanoTime() + timeoutMillis * 1000000L);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        do {
+            p.key = channel << 16 | random.nextInt(65536);
+        } while (pending.putIfAbsent(p.key, p) != null);
+        query[0] = (byte) (p.key >> 8);
+        query[1] = (byte) p.key;
+        scheduled.add(p);
+        try {
+            // a full send buffer drops the query like the network would, and it times out
+            channels[channel].send(ByteBuffer.wrap(query, 0, length), server);
+        } catch (IOException e) {
+            pending.remove(p.key, p);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Give back the buffer of a response, which must not be read any more
+     *
+     * @param response a buffer a response from {@link #send} arrived in
+     */
+    void release(ByteBuffer response) {
+        if (spareCount.incrementAndGet() > MAX_SPARE_BUFFERS) {
+            spareCount.decrementAndGet();
+            return;
+        }
+        spares.add(response);
+    }
+
+    /**
+     * @return the number of queries waiting for a response
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The I/O thread: receive responses and expire timeouts until closed
+     */
+    private void loop() {
+        try {
+            while (!closed) {
+                selector.select(TICK_NANOS / 1000000L);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    receive((DatagramChannel) key.channel(), (Integer) key.attachment());
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            // the selector failed, fail everything below
+        } finally {
+            closed = true;
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+//                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+//                e.printStackTrace();
+            }
+            for (Pending p : pending.values()) {
+                p.response.completeExceptionally(new ClosedChannelException());
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Hand every datagram waiting on a channel to its query, in the buffer it
+     * was received into. A datagram that is dropped leaves its buffer for the next.
+     */
+    private void receive(DatagramChannel channel, int index) throws IOException {
+        while (true) {
+            if (receiveBuffer == null) {
+                receiveBuffer = spares.poll();
+                if (receiveBuffer != null) {
+                    spareCount.decrementAndGet();
+                } else {
+                    receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+                }
+            }
+            ByteBuffer buffer = receiveBuffer;
+            buffer.clear();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) return;
+            buffer.flip();
+            if (buffer.remaining() < 12) continue;
+            int id = (buffer.get(0) & 0xff) << 8 | (buffer.get(1) & 0xff);
+            int key = index << 16 | id;
+            Pending p = pending.get(key);
+            // a response must come from where its query went
+            if (p == null || !p.server.equals(source) || !pending.remove(key, p)) continue;
+            receiveBuffer = null;
+            p.response.complete(buffer);
+        }
+    }
+
+    /**
+     * Put newly sent queries on the wheel, then fail those whose time is up
+     */
+    private void expire() {
+        Pending p;
+        while ((p = scheduled.poll()) != null) {
+            if (!p.response.isDone()) {
+                wheel[(int) Math.floorMod(Math.max(p.deadline / TICK_NANOS, tick), (long) WHEEL_SIZE)].add(p);
+            }
+        }
+        long now = System.nanoTime();
+        // only ticks that are over, so every query in the slot of one is due unless it is a turn or more away
+        for (long last = now / TICK_NANOS - 1; tick <= last; tick++) {
+            Iterator<Pending> slot = wheel[(int) Math.floorMod(tick, (long) WHEEL_SIZE)].iterator();
+            while (slot.hasNext()) {
+                p = slot.next();
+                if (p.response.isDone()) {
+                    slot.remove();
+                } else if (p.deadline - now <= 0) {
+                    slot.remove();
+                    if (pending.remove(p.key, p)) {
+                        p.response.completeExceptionally(new SocketTimeoutException("No response from " + p.server));
+                    }
+                }
+                // otherwise due in a later turn of the wheel
+            }
+        }
+    }
+
+    /**
+     * A query waiting for its response
+     */
+    private static class Pending {
+        final InetSocketAddress server;
+        final CompletableFuture<ByteBuffer> response;
+        final long deadline; // System.nanoTime
+        int key;
+
+        Pending(InetSocketAddress server, CompletableFuture<ByteBuffer> response, long deadline) {
+            this.server = server;
+            this.response = response;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,832 @@
+import exception.MalformedResponseException;
+import exception.NotResponseException;
+import exception.RCODEException;
+import exception.TransactionIDException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Iterative DNS resolver: follows referrals from a root name server down to a
+ * name server that answers for the name.
+ * <p>
+ * A Resolver holds nothing but its root name server, the {@link QueryMultiplexer}
+ * its queries go through and, optionally, a {@link ResolverCache}. Everything a
+ * lookup needs is kept in a {@link Lookup} of its own, so one instance can be
+ * shared by any number of threads, and {@link #lookupAll} runs many lookups at once.
+ * <p>
+ * With a cache, a lookup is answered from it when it can be, and otherwise
+ * starts at the deepest zone cut it holds instead of at the root.
+ * <p>
+ * A zone's name servers are asked in order of their smoothed round trip times
+ * ({@link NameServerRtt}). A query goes to the fastest; if it has not answered
+ * within its usual time, the next one is asked as well, and so on, and the
+ * first valid response is used.
+ * <p>
+ * Failures are returned rather than thrown, as a single "A 0.0.0.0" record
+ * whose ttl is one of the error codes below.
+ */
+public class Resolver implements Closeable {
+
+    static final int TIMEOUT = 5000; // timeout = 5 seconds
+    static final int MAX_NUMBER_OF_QUERIES = 30;
+    static final int MAX_CNAME_CHAIN = 16;
+    static final int MAX_ATTEMPTS = 4; // queries sent for one hop, to different servers where there are several
+
+    // Error codes, returned as the ttl of the record describing the failure
+    static final int NAME_ERROR = -1;       // the name does not exist (RCODE 3)
+    static final int TIMED_OUT = -2;        // a name server did not answer twice
+    static final int TOO_MANY_QUERIES = -3; // more than MAX_NUMBER_OF_QUERIES were needed
+    static final int OTHER_ERROR = -4;      // any other error
+    static final int NO_ANSWER = -6;        // authoritative answer without records (SOA)
+
+    // one response parser per thread, reused for every response it decodes
+    private static final ThreadLocal<DNSResponse> RESPONSES = new ThreadLocal<DNSResponse>() {
+        @Override
+        protected DNSResponse initialValue() {
+            return new DNSResponse();
+        }
+    };
+
+    private final InetAddress rootNameServer;
+    private final ResolverCache cache; // null when nothing is cached
+    private final NameServerRtt rtt = new NameServerRtt();
+    private final QueryMultiplexer transport;
+    private final boolean ownsTransport; // close the transport with the resolver
+
+    /**
+     * @param rootNameServer the name server every lookup starts at
+     */
+    public Resolver(InetAddress rootNameServer) {
+        this(rootNameServer, null);
+    }
+
+    /**
+     * Create a resolver with a transport of its own, closed by {@link #close()}
+     *
+     * @param rootNameServer the name server lookups start at when the cache has no better one
+     * @param cache          the cache to answer from and add to, may be shared by several resolvers
+     */
+    public Resolver(InetAddress rootNameServer, ResolverCache cache) {
+        this.rootNameServer = rootNameServer;
+        this.cache = cache;
+        try {
+            this.transport = new QueryMultiplexer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.ownsTransport = true;
+    }
+
+    /**
+     * @param rootNameServer the name server lookups start at when the cache has no better one
+     * @param cache          the cache to answer from and add to, may be shared by several resolvers
+     * @param transport      the transport to send queries through, may be shared by several resolvers
+     */
+    public Resolver(InetAddress rootNameServer, ResolverCache cache, QueryMultiplexer transport) {
+        this.rootNameServer = rootNameServer;
+        this.cache = cache;
+        this.transport = transport;
+        this.ownsTransport = false;
+    }
+
+    public InetAddress getRootNameServer() {
+        return rootNameServer;
+    }
+
+    /**
+     * Close the transport if this resolver created it
+     */
+    @Override
+    public void close() throws IOException {
+        if (ownsTransport) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Look up a name
+     *
+     * @param fqdn   the domain name to look up
+     * @param isIPv6 true for AAAA records, false for A records
+     * @return the answer records, or a single record with an error code as its ttl
+     */
+    public List<DNSlookup.Record> lookup(String fqdn, boolean isIPv6) {
+        return lookup(fqdn, isIPv6, null);
+    }
+
+    /**
+     * Look up a name, tracing every query and response
+     *
+     * @param fqdn   the domain name to look up
+     * @param isIPv6 true for AAAA records, false for A records
+     * @param trace  where to trace the queries, null for no tracing
+     * @return the answer records, or a single record with an error code as its ttl
+     */
+    public List<DNSlookup.Record> lookup(String fqdn, boolean isIPv6, PrintStream trace) {
+        return resolve(new Lookup(fqdn, trace), fqdn, isIPv6);
+    }
+
+    /**
+     * Look up many names in parallel, handing each one's records to results as
+     * soon as its lookup completes. Names are only taken from the iterator when
+     * a lookup can start, so it may be lazy and of any length.
+     *
+     * @param names       the names to look up
+     * @param isIPv6      true for AAAA records, false for A records
+     * @param concurrency the number of lookups in flight at once
+     * @param results     given every name with its records, in order of completion,
+     *                    by one thread at a time
+     */
+    public void lookupAll(Iterator<String> names, boolean isIPv6, int concurrency,
+                          BiConsumer<String, List<DNSlookup.Record>> results) throws InterruptedException {
+        AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String name;
+                        while (failure.get() == null && (name = next(names)) != null) {
+                            List<DNSlookup.Record> records = lookup(name, isIPv6);
+                            synchronized (results) {
+                                results.accept(name, records);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Look up every name in a file, one per line, as {@link #lookupAll(BufferedReader, boolean, int, BiConsumer)}
+     *
+     * @param file the file of names
+     */
+    public void lookupAll(Path file, boolean isIPv6, int concurrency,
+                          BiConsumer<String, List<DNSlookup.Record>> results) throws IOException, InterruptedException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            lookupAll(in, isIPv6, concurrency, results);
+        }
+    }
+
+    /**
+     * Look up every name read from in, one per line, as {@link #lookupAll(Iterator, boolean, int, BiConsumer)}.
+     * Blank lines and lines starting with '#' are skipped. Lines are read as
+     * lookups start, so the input is never held in memory as a whole.
+     *
+     * @param in the names
+     */
+    public void lookupAll(BufferedReader in, boolean isIPv6, int concurrency,
+                          BiConsumer<String, List<DNSlookup.Record>> results) throws IOException, InterruptedException {
+        try {
+            lookupAll(names(in), isIPv6, concurrency, results);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the next name, or null when there are no more
+     */
+    private static String next(Iterator<String> names) {
+        synchronized (names) {
+            return names.hasNext() ? names.next() : null;
+        }
+    }
+
+    /**
+     * @return the names on the lines of in
+     */
+    private static Iterator<String> names(BufferedReader in) {
+        return new Iterator<String>() {
+            private String next = null;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (next == null) {
+                        String line = in.readLine();
+                        if (line == null) return false;
+                        line = line.trim();
+                        if (!line.isEmpty() && !line.startsWith("#")) next = line;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String name = next;
+                next = null;
+                return name;
+            }
+        };
+    }
+
+    /**
+     * The state of one lookup
+     */
+    static class Lookup {
+        final String fqdn;        // the name asked for
+        final PrintStream trace;  // null when not tracing
+        int numberOfQueries = 0;  // queries sent so far
+        int cnames = 0;           // CNAMEs followed so far
+
+        Lookup(String fqdn, PrintStream trace) {
+            this.fqdn = fqdn;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * The records of a response that a lookup uses, by section
+     */
+    static class Sections {
+        final List<DNSlookup.Record> answers = new ArrayList<DNSlookup.Record>();
+        final List<DNSlookup.Record> nameservers = new ArrayList<DNSlookup.Record>();
+        final List<DNSlookup.Record> additional = new ArrayList<DNSlookup.Record>();
+        boolean authoritative = false;
+        int rcode = 0;
+
+        /**
+         * @return the ttl of the SOA record in the authority section, -1 if there is none
+         */
+        int soaTtl() {
+            for (DNSlookup.Record r : nameservers) {
+                if (r.recordType.equals("6")) return r.ttl;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Resolve a name for a lookup from the cache if it can be, otherwise starting
+     * at the deepest zone cut in the cache, or at the root
+     *
+     * @param lookup the lookup this is part of
+     * @param fqdn   the domain name to look up, the lookup's own or one it depends on
+     * @param isIPv6 true for IPv6 query, false for IPv4 query
+     * @return the answer records, or a single record with an error code as its ttl
+     */
+    private List<DNSlookup.Record> resolve(Lookup lookup, String fqdn, boolean isIPv6) {
+        List<InetAddress> servers = Collections.singletonList(rootNameServer);
+        String zone = ""; // the root
+        if (cache != null) {
+            List<DNSlookup.Record> cached = cache.get(fqdn, isIPv6 ? "AAAA" : "A");
+            if (cached == null) cached = cache.get(fqdn, ResolverCache.NXDOMAIN);
+            if (cached != null) return cached;
+            List<DNSlookup.Record> cname = cache.get(fqdn, "CN");
+            if (cname != null) return followCname(lookup, cname.get(0).recordValue, isIPv6);
+            ResolverCache.ZoneCut cut = cache.closestZoneCut(fqdn);
+            if (cut != null) {
+                servers = cut.nameServers;
+                zone = cut.zone;
+            }
+        }
+        return resolve(lookup, zone, servers, fqdn, isIPv6);
+    }
+
+    /**
+     * Resolve the canonical name a CNAME points to
+     */
+    private List<DNSlookup.Record> followCname(Lookup lookup, String cname, boolean isIPv6) {
+        if (++lookup.cnames > MAX_CNAME_CHAIN) {
+            return error(lookup, OTHER_ERROR);
+        }
+        return resolve(lookup, cname, isIPv6);
+    }
+
+    /**
+     * Resolve a name for a lookup, starting at the name servers of a zone
+     *
+     * @param lookup  the lookup this is part of
+     * @param zone    the zone the servers are authoritative for, "" for the root; a
+     *                referral from them is only followed, and cached, below it
+     * @param servers addresses of the zone's DNS servers
+     * @param fqdn    the domain name to look up, the lookup's own or one it depends on
+     * @param isIPv6  true for IPv6 query, false for IPv4 query
+     * @return the answer records, or a single record with an error code as its ttl
+     */
+    private List<DNSlookup.Record> resolve(Lookup lookup, String zone, List<InetAddress> servers, String fqdn,
+                                           boolean isIPv6) {
+        if (++lookup.numberOfQueries > MAX_NUMBER_OF_QUERIES) {
+            return error(lookup, TOO_MANY_QUERIES);
+        }
+        Sections response;
+        try {
+            response = query(lookup, zone, servers, fqdn, isIPv6);
+        } catch (SocketTimeoutException e) {
+            return error(lookup, TIMED_OUT);
+        } catch (RCODEException e) {
+            return error(lookup, OTHER_ERROR);
+        } catch (NotResponseException | TransactionIDException | MalformedResponseException | IOException
+                | RuntimeException e) {
+            return error(lookup, OTHER_ERROR);
+        }
+
+        if (response.rcode == 3) { // NXDOMAIN
+            List<DNSlookup.Record> ans = error(lookup, NAME_ERROR);
+            if (cache != null) {
+                cache.putNegative(fqdn, ResolverCache.NXDOMAIN, ans, response.soaTtl());
+            }
+            return ans;
+        }
+        if (response.answers.size() > 0 || response.authoritative) {
+            if (response.answers.size() == 0) { // No answer, but authoritative SOA
+                List<DNSlookup.Record> ans = new ArrayList<DNSlookup.Record>();
+                for (DNSlookup.Record r : response.nameservers) {
+                    ans.add(new DNSlookup.Record(r.recordName, NO_ANSWER, "A", "0.0.0.0"));
+                }
+                if (cache != null) {
+                    cache.putNegative(fqdn, isIPv6 ? "AAAA" : "A", ans, response.soaTtl());
+                }
+                return ans;
+            }
+            DNSlookup.Record first = response.answers.get(0);
+            if (first.recordType.equals("CN")) {
+                // start again with the canonical name, from the root or the cache
+                if (cache != null) {
+                    cache.put(fqdn, "CN", response.answers.subList(0, 1));
+                }
+                return followCname(lookup, first.recordValue, isIPv6);
+            }
+            if (cache != null) {
+                cache.put(fqdn, isIPv6 ? "AAAA" : "A", response.answers);
+            }
+            return response.answers;
+        }
+        if (cache != null) {
+            cache.putDelegation(zone, fqdn, response.nameservers, response.additional);
+        }
+
+        // a referral: ask every name server it names for the first zone it delegates
+        // below the current one, at the addresses in 'Additional Info' that are in
+        // bailiwick; a lame referral, delegating nothing below it, ends the lookup
+        String delegated = null;
+        List<InetAddress> nameServers = new ArrayList<InetAddress>();
+        String glueless = null; // the first name server without glue
+        for (DNSlookup.Record ns : response.nameservers) {
+            if (!ResolverCache.isDelegation(ns, zone, fqdn)) continue;
+            if (delegated == null) delegated = ns.recordName;
+            if (!ns.recordName.equalsIgnoreCase(delegated)) continue;
+            boolean glued = false;
+            for (DNSlookup.Record r : response.additional) {
+                if (ns.recordValue.equalsIgnoreCase(r.recordName) && r.recordType.equals("A")
+                        && ResolverCache.isWithin(r.recordName, zone)) {
+                    glued |= addAddress(nameServers, r.recordValue);
+                }
+            }
+            if (!glued && glueless == null) glueless = ns.recordValue;
+        }
+        if (nameServers.isEmpty()) {
+            if (glueless == null) {
+                return new ArrayList<DNSlookup.Record>();
+            }
+            // no glue, resolve the name server's IPv4 addresses from the root or the cache
+            List<DNSlookup.Record> addresses = resolve(lookup, glueless, false);
+            for (DNSlookup.Record r : addresses) {
+                if (r.ttl < 0) return error(lookup, r.ttl);
+                if (r.recordType.equals("A")) {
+                    addAddress(nameServers, r.recordValue);
+                }
+            }
+            if (nameServers.isEmpty()) {
+                return new ArrayList<DNSlookup.Record>();
+            }
+        }
+        return resolve(lookup, delegated, nameServers, fqdn, isIPv6);
+    }
+
+    /**
+     * Add an address to a list of name servers unless it is already there
+     *
+     * @param nameServers the list
+     * @param address     the address, in dotted form
+     * @return true if it is a valid address
+     */
+    private static boolean addAddress(List<InetAddress> nameServers, String address) {
+        try {
+            InetAddress a = InetAddress.getByName(address); // a literal, no lookup
+            if (!nameServers.contains(a)) nameServers.add(a);
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the single record reporting an error code for the lookup's name
+     */
+    private static List<DNSlookup.Record> error(Lookup lookup, int code) {
+        List<DNSlookup.Record> ans = new ArrayList<DNSlookup.Record>(1);
+        ans.add(new DNSlookup.Record(lookup.fqdn, code, "A", "0.0.0.0"));
+        return ans;
+    }
+
+    /**
+     * Send a query to the fastest of a zone's name servers and wait for a
+     * response, hedging: whenever the servers asked so far have not answered
+     * within the hedge delay of the last one, or one of them has answered with
+     * an error, the next server is asked too. A lone server is asked twice.
+     *
+     * @param lookup  the lookup this is part of
+     * @param zone    the zone the servers are authoritative for, "" for the root
+     * @param servers addresses of the zone's DNS servers
+     * @param fqdn    the domain name to ask for
+     * @param isIPv6  true for IPv6 query, false for IPv4 query
+     * @return the first valid response
+     * @throws SocketTimeoutException if no query was answered in time, as the last failure
+     * @throws RCODEException         if RCODE in response is neither 0 nor 3 (NXDOMAIN), as the last failure
+     * @throws NotResponseException   if first bit in flag is not 1, as the last failure
+     * @throws TransactionIDException if the response is not to the query, which the transport rules out
+     * @throws MalformedResponseException if the response is truncated or badly formed, as the last failure
+     */
+    private Sections query(Lookup lookup, String zone, List<InetAddress> servers, String fqdn, boolean isIPv6)
+            throws IOException, RCODEException, NotResponseException, TransactionIDException,
+            MalformedResponseException {
+        byte[] domainNameBuffer = compressDomainName(fqdn);
+
+        byte[] buf = new byte[1024];
+        setUpQuery(domainNameBuffer, buf, isIPv6);
+
+        // 12 is header length, 4 is QCLASS and QTYPE length
+        int dnsQueryLength = domainNameBuffer.length + 12 + 4;
+
+        List<InetAddress> order = rtt.rank(servers);
+        if (order.size() == 1) order.add(order.get(0));
+        if (order.size() > MAX_ATTEMPTS) order = order.subList(0, MAX_ATTEMPTS);
+
+        BlockingQueue<Attempt> answered = new LinkedBlockingQueue<Attempt>();
+        AtomicBoolean finished = new AtomicBoolean(); // set once no more attempts are read
+        Exception failure = null;
+        int sent = 0;
+        int outstanding = 0;
+        long nextSend = System.nanoTime();
+        try {
+            while (sent < order.size() || outstanding > 0) {
+                if (sent < order.size() && System.nanoTime() - nextSend >= 0) {
+                    InetAddress server = order.get(sent++);
+                    send(lookup, server, buf, dnsQueryLength, fqdn, isIPv6, answered, finished);
+                    outstanding++;
+                    nextSend = System.nanoTime() + rtt.hedgeDelay(server);
+                    continue;
+                }
+                Attempt attempt;
+                try {
+                    // every query is answered or times out, so only wait for a hedge while there are servers left
+                    attempt = sent < order.size()
+                            ? answered.poll(nextSend - System.nanoTime(), TimeUnit.NANOSECONDS)
+                            : answered.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (attempt == null) continue; // time to ask the next server too
+                outstanding--;
+                ByteBuffer received = null;
+                try {
+                    received = attempt.response();
+                    return decodeResponse(lookup, attempt.transactionId, received, zone, fqdn, isIPv6);
+                } catch (IOException | RCODEException | NotResponseException | TransactionIDException
+                        | MalformedResponseException e) {
+                    failure = e;
+                    nextSend = System.nanoTime(); // ask the next server now
+                } finally {
+                    if (received != null) transport.release(received);
+                }
+            }
+            throw rethrow(failure);
+        } finally {
+            finished.set(true);
+            release(answered);
+        }
+    }
+
+    /**
+     * Send the query to one server, putting the attempt on answered once it
+     * has a response or has timed out. Its round trip time is recorded even if
+     * it comes after the lookup has moved on.
+     *
+     * @param lookup         the lookup this is part of, for tracing
+     * @param server         address of the DNS server
+     * @param buf            buffer of the query
+     * @param dnsQueryLength the length of the query
+     * @param answered       where to put the attempt
+     * @param finished       set once answered is no longer read, so that a late
+     *                       response's buffer goes straight back to the transport
+     */
+    private void send(Lookup lookup, InetAddress server, byte[] buf, int dnsQueryLength, String fqdn,
+                      boolean isIPv6, BlockingQueue<Attempt> answered, AtomicBoolean finished) {
+        long sentAt = System.nanoTime();
+        CompletableFuture<ByteBuffer> response = transport.send(buf, dnsQueryLength, new InetSocketAddress(server, 53),
+                TIMEOUT);
+        // the transport has written the transaction ID into the query
+        Attempt attempt = new Attempt(((buf[0] << 8) & 0xff00) | (buf[1] & 0xff), response);
+        if (lookup.trace != null) {
+            printQueryInfo(lookup.trace, server, fqdn, attempt.transactionId, isIPv6);
+        }
+        response.whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+            @Override
+            public void accept(ByteBuffer data, Throwable error) {
+                if (error == null) {
+                    rtt.sample(server, System.nanoTime() - sentAt);
+                } else if (error instanceof SocketTimeoutException) {
+                    rtt.timedOut(server);
+                }
+                answered.add(attempt);
+                if (finished.get()) release(answered);
+            }
+        });
+    }
+
+    /**
+     * Give the transport back the buffers of the responses on answered, which
+     * the lookup has moved on from
+     */
+    private void release(BlockingQueue<Attempt> answered) {
+        Attempt attempt;
+        while ((attempt = answered.poll()) != null) {
+            if (!attempt.response.isCompletedExceptionally()) {
+                transport.release(attempt.response.join());
+            }
+        }
+    }
+
+    /**
+     * A query sent to one server
+     */
+    private static class Attempt {
+        final int transactionId;
+        final CompletableFuture<ByteBuffer> response;
+
+        Attempt(int transactionId, CompletableFuture<ByteBuffer> response) {
+            this.transactionId = transactionId;
+            this.response = response;
+        }
+
+        /**
+         * @return the response of a completed attempt
+         * @throws SocketTimeoutException if it was not answered in time
+         * @throws IOException            if it could not be sent
+         */
+        ByteBuffer response() throws IOException {
+            try {
+                return response.getNow(null);
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return the failure of a query, to be thrown as whichever exception it is
+     */
+    private static IOException rethrow(Exception e) throws RCODEException, NotResponseException,
+            TransactionIDException, MalformedResponseException {
+        if (e instanceof RCODEException) throw (RCODEException) e;
+        if (e instanceof NotResponseException) throw (NotResponseException) e;
+        if (e instanceof TransactionIDException) throw (TransactionIDException) e;
+        if (e instanceof MalformedResponseException) throw (MalformedResponseException) e;
+        return (IOException) e;
+    }
+
+    /**
+     * Set up the header, QNAME, QCLASS, and QTYPE sections of the query
+     *
+     * @param domainNameBuffer buffer of the fqdn
+     * @param buf              buffer of the query
+     * @param isIPv6           true for IPv6 queries, false for IPv4 queries
+     */
+    private static void setUpQuery(byte[] domainNameBuffer, byte[] buf, boolean isIPv6) {
+        setQueryHeader(buf, false); // false for non-recursive queries
+        setQueryQNAME(buf, domainNameBuffer);
+        setQueryTypeAndClass(buf, domainNameBuffer.length, isIPv6);
+    }
+
+    /**
+     * Display query information
+     *
+     * @param trace         where to print it
+     * @param serverAddress DNS server address
+     * @param fqdn          domain name
+     * @param transactionId transaction ID of query
+     */
+    private static void printQueryInfo(PrintStream trace, InetAddress serverAddress, String fqdn, int transactionId,
+                                       boolean isIPv6) {
+        trace.printf("\n\n");
+        trace.print("Query ID     " + transactionId + " ");
+        trace.print(fqdn + "  ");
+        trace.print(isIPv6 ? "AAAA" : "A" + " ");
+        trace.println(" --> " + serverAddress.getHostAddress());
+    }
+
+    /**
+     * Decode what a lookup uses of the response from a DNS server, leaving the
+     * rest in the buffer: the answers for the name and type asked for, or
+     * CNAMEs for the name; failing those, the SOA and the NS records delegating
+     * a zone below the one asked with their "A" glue, or the whole authority
+     * section of an authoritative response
+     *
+     * @param lookup        the lookup this is part of, for tracing
+     * @param transactionId the transaction ID of the query
+     * @param received      the received data, from its position to its limit
+     * @param zone          the zone of the server that was asked, "" for the root
+     * @param fqdn          the domain name that was asked for
+     * @param isIPv6        true for an AAAA query, false for an A query
+     * @return the records of the response
+     * @throws TransactionIDException     if transaction id don't match
+     * @throws RCODEException             if RCODE in response is neither 0 nor 3 (NXDOMAIN),
+     *                                    the records of an NXDOMAIN response are decoded for its SOA
+     * @throws NotResponseException       if first bit in flag is not 1
+     * @throws MalformedResponseException if the response is truncated or badly formed
+     */
+    private static Sections decodeResponse(Lookup lookup, int transactionId, ByteBuffer received, String zone,
+                                           String fqdn, boolean isIPv6)
+            throws TransactionIDException, RCODEException, NotResponseException, MalformedResponseException {
+        DNSResponse response = RESPONSES.get().wrap(received);
+        if (transactionId != response.getQueryID()) throw new TransactionIDException();
+        int RCODE = response.getRCODE();
+        if (RCODE != 0 && RCODE != 3) {
+            throw new RCODEException(RCODE);
+        }
+        if (!response.isResponse()) throw new NotResponseException();
+        if (lookup.trace != null) {
+            response.dumpResponse(lookup.trace);
+        }
+
+        Sections sections = new Sections();
+        sections.rcode = RCODE;
+        sections.authoritative = response.isAuthoritative();
+        int answers = response.getAnswerCount();
+        int nameservers = answers + response.getNsCount();
+        int asked = isIPv6 ? DNSResponse.TYPE_AAAA : DNSResponse.TYPE_A;
+        for (int k = 0; k < answers; k++) {
+            int type = response.type(k);
+            if ((type == asked || type == DNSResponse.TYPE_CNAME) && response.nameEquals(k, fqdn)) {
+                sections.answers.add(record(response, k));
+            }
+        }
+        if (!sections.answers.isEmpty()) return sections;
+
+        for (int k = answers; k < nameservers; k++) {
+            if (sections.authoritative || response.type(k) == DNSResponse.TYPE_SOA) {
+                sections.nameservers.add(record(response, k));
+            } else if (response.type(k) == DNSResponse.TYPE_NS) {
+                DNSlookup.Record ns = record(response, k);
+                if (ResolverCache.isDelegation(ns, zone, fqdn)) sections.nameservers.add(ns);
+            }
+        }
+        for (int k = nameservers; k < response.recordCount(); k++) {
+            if (response.type(k) != DNSResponse.TYPE_A) continue;
+            for (DNSlookup.Record ns : sections.nameservers) {
+                if (ns.recordType.equals("NS") && response.nameEquals(k, ns.recordValue)) {
+                    sections.additional.add(record(response, k));
+                    break;
+                }
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * @return record i of response, decoded
+     */
+    private static DNSlookup.Record record(DNSResponse response, int i) throws MalformedResponseException {
+        return new DNSlookup.Record(response.name(i), response.ttl(i), response.typeName(i), response.value(i));
+    }
+
+    /**
+     * Set the header of query, header is 12 bytes long
+     *
+     * @param buf         buffer of query
+     * @param isRecursive true if the query is recursive, false if iterative
+     */
+    private static void setQueryHeader(byte[] buf, boolean isRecursive) {
+        // Transaction ID, chosen by the transport as the query is sent
+        buf[0] = 0x00;
+        buf[1] = 0x00;
+        // Flags
+        if (isRecursive) {
+            buf[2] = 0x01;
+        } else {
+            buf[2] = 0x00;
+        }
+        buf[3] = 0x00;
+        // Questions (QDCOUNT)
+        buf[4] = 0x00;
+        buf[5] = 0x01;
+        // Answer RR (ANCOUNT)
+        buf[6] = 0x00;
+        buf[7] = 0x00;
+        // Authority RR (NSCOUNT)
+        buf[8] = 0x00;
+        buf[9] = 0x00;
+        //  Additional RR (ARCOUNT)
+        buf[10] = 0x00;
+        buf[11] = 0x00;
+    }
+
+    /**
+     * Set QNAME of query
+     *
+     * @param buf           buffer for the query
+     * @param addressBuffer buffer for QNAME
+     */
+    private static void setQueryQNAME(byte[] buf, byte[] addressBuffer) {
+        for (int i = 0; i < addressBuffer.length; i++) {
+            buf[i + 12] = addressBuffer[i];
+        }
+    }
+
+    /**
+     * Set QTYPE and QCLASS of query
+     *
+     * @param buf    buffer for the query
+     * @param len    length of QNAME
+     * @param isIPv6 false if IPv4, true if IPv6
+     */
+    private static void setQueryTypeAndClass(byte[] buf, int len, boolean isIPv6) {
+        // QTYPE
+        // https://en.wikipedia.org/wiki/List_of_DNS_record_types
+        if (!isIPv6) {
+            buf[12 + len] = 0x00;
+            buf[13 + len] = 0x01;  // QTYPE=A    id: 1
+        } else {
+            buf[12 + len] = 0x00;
+            buf[13 + len] = 0x1C;  // QTYPE=AAAA id: 28
+        }
+        // QCLASS
+        buf[14 + len] = 0x00;
+        buf[15 + len] = 0x01;    // QTYPE=IN 1 the Internet
+    }
+
+    /**
+     * Convert domain name format
+     * Example:
+     * www.google.com -> 3www6google3com0
+     * www.cs.ubc.ca -> 3www2cs3ubc2ca0
+     *
+     * @param domainName the domain name to convert
+     * @return the converted byte array
+     */
+    private static byte[] compressDomainName(String domainName) {
+        String[] subdomains = domainName.split("\\.");
+        int[] domainLengths = new int[subdomains.length];
+        for (int i = 0; i < subdomains.length; i++) {
+            domainLengths[i] = subdomains[i].length();
+        }
+        byte[] result = new byte[domainName.length() + 2];
+        int ptr = 0;
+        for (int i = 0; i < subdomains.length; i++) {
+            String subdomain = subdomains[i];
+            int len = domainLengths[i];
+            result[ptr++] = (byte) len;
+            byte[] data = subdomain.getBytes();
+            for (int j = 0; j < data.length; j++) {
+                result[ptr++] = data[j];
+            }
+        }
+        return result;
+    }
+}
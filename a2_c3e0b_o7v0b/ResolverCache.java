@@ -0,0 +1,300 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Concurrent cache of what a {@link Resolver} has learnt, each entry kept for
+ * its record's TTL:
+ * <ul>
+ * <li>answer RRsets, by name and type ("A", "AAAA", "CN" for a CNAME)</li>
+ * <li>NS delegations, by zone, with their glue kept apart from answers, as
+ * GLUE RRsets only read by {@link #closestZoneCut}</li>
+ * <li>negative results: NXDOMAIN for a name, or an authoritative answer with
+ * no records for a name and type, kept for the TTL of the SOA that came with them</li>
+ * </ul>
+ * Memory is bounded by the number of entries. The cache is split into
+ * segments, each locked on its own and evicting its least recently used
+ * entries when full; expired entries are dropped when they are next looked at.
+ */
+public class ResolverCache {
+
+    static final int DEFAULT_CAPACITY = 100000;
+    static final int MAX_TTL = 86400;          // no entry is kept longer than a day
+    static final int MAX_NEGATIVE_TTL = 10800; // nor a negative one longer than three hours (RFC 2308)
+
+    // the type under which NXDOMAIN is kept, as it holds for every type
+    static final String NXDOMAIN = "NXDOMAIN";
+    // the type under which glue A records are kept, so they are never taken for answers
+    static final String GLUE = "GLUE";
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public ResolverCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the most entries to keep
+     */
+    public ResolverCache(int capacity) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        }
+    }
+
+    /**
+     * A zone cut found in the cache: the zone and the addresses of its name servers
+     */
+    static class ZoneCut {
+        final String zone;
+        final List<InetAddress> nameServers;
+
+        ZoneCut(String zone, List<InetAddress> nameServers) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+        }
+    }
+
+    /**
+     * Look up an RRset or a negative result
+     *
+     * @param name the owner name
+     * @param type the record type, or NXDOMAIN
+     * @return copies of the records with their ttl reduced to what is left of it
+     * (error codes are left as they are), or null if nothing unexpired is cached
+     */
+    List<DNSlookup.Record> get(String name, String type) {
+        Entry entry = entry(name, type);
+        if (entry == null) return null;
+        int left = (int) Math.max(0, (entry.expiresAt - System.nanoTime()) / 1000000000L);
+        List<DNSlookup.Record> records = new ArrayList<DNSlookup.Record>(entry.records.size());
+        for (DNSlookup.Record r : entry.records) {
+            records.add(new DNSlookup.Record(r.recordName, entry.negative ? r.ttl : left, r.recordType, r.recordValue));
+        }
+        return records;
+    }
+
+    /**
+     * Keep an RRset for the smallest ttl among its records
+     *
+     * @param name    the owner name
+     * @param type    the record type
+     * @param records the records
+     */
+    void put(String name, String type, List<DNSlookup.Record> records) {
+        if (records.isEmpty()) return;
+        int ttl = MAX_TTL;
+        for (DNSlookup.Record r : records) {
+            ttl = Math.min(ttl, r.ttl);
+        }
+        store(name, type, records, ttl, false);
+    }
+
+    /**
+     * Keep a negative result
+     *
+     * @param name   the name looked up
+     * @param type   the record type asked for, or NXDOMAIN
+     * @param result the error records to return for it
+     * @param ttl    the SOA's ttl
+     */
+    void putNegative(String name, String type, List<DNSlookup.Record> result, int ttl) {
+        store(name, type, result, Math.min(ttl, MAX_NEGATIVE_TTL), true);
+    }
+
+    /**
+     * Keep the NS records of a referral, each zone's for their smallest ttl, and
+     * the "A" glue records in additional that belong to them. A server can only
+     * delegate what is in its own zone: NS records are kept only for zones strictly
+     * below the zone that was asked and enclosing the name asked for, and glue
+     * only for names inside the zone that was asked.
+     *
+     * @param asked       the zone of the server that sent the referral, "" for the root
+     * @param fqdn        the name that was asked for
+     * @param nameservers the authority section of the referral
+     * @param additional  the additional section of the referral
+     */
+    void putDelegation(String asked, String fqdn, List<DNSlookup.Record> nameservers,
+                       List<DNSlookup.Record> additional) {
+        Map<String, List<DNSlookup.Record>> zones = new LinkedHashMap<String, List<DNSlookup.Record>>();
+        Map<String, List<DNSlookup.Record>> glue = new LinkedHashMap<String, List<DNSlookup.Record>>();
+        for (DNSlookup.Record ns : nameservers) {
+            if (!isDelegation(ns, asked, fqdn)) continue;
+            List<DNSlookup.Record> zone = zones.get(ns.recordName);
+            if (zone == null) {
+                zone = new ArrayList<DNSlookup.Record>();
+                zones.put(ns.recordName, zone);
+            }
+            zone.add(ns);
+            for (DNSlookup.Record r : additional) {
+                if (r.recordType.equals("A") && r.recordName.equalsIgnoreCase(ns.recordValue)
+                        && isWithin(r.recordName, asked)) {
+                    List<DNSlookup.Record> addresses = glue.get(r.recordName);
+                    if (addresses == null) {
+                        addresses = new ArrayList<DNSlookup.Record>();
+                        glue.put(r.recordName, addresses);
+                    }
+                    addresses.add(r);
+                }
+            }
+        }
+        for (Map.Entry<String, List<DNSlookup.Record>> zone : zones.entrySet()) {
+            put(zone.getKey(), "NS", zone.getValue());
+        }
+        for (Map.Entry<String, List<DNSlookup.Record>> addresses : glue.entrySet()) {
+            put(addresses.getKey(), GLUE, addresses.getValue());
+        }
+    }
+
+    /**
+     * Find the deepest zone enclosing a name whose delegation and at least one
+     * name server address are cached, so a lookup can start there instead of at the root
+     *
+     * @param name the name to be looked up
+     * @return the zone cut, or null if no enclosing zone is usable
+     */
+    ZoneCut closestZoneCut(String name) {
+        for (String zone = name; !zone.isEmpty(); zone = parent(zone)) {
+            Entry delegation = entry(zone, "NS");
+            if (delegation == null) continue;
+            List<InetAddress> addresses = new ArrayList<InetAddress>();
+            for (DNSlookup.Record ns : delegation.records) {
+                Entry glue = entry(ns.recordValue, GLUE);
+                if (glue == null) glue = entry(ns.recordValue, "A"); // resolved without glue
+                if (glue == null) continue;
+                for (DNSlookup.Record a : glue.records) {
+                    try {
+                        addresses.add(InetAddress.getByName(a.recordValue));
+                    } catch (UnknownHostException e) {
+                        // not an address literal, skip it
+                    }
+                }
+            }
+            if (!addresses.isEmpty()) {
+                return new ZoneCut(zone, addresses);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of entries, expired ones included until they are evicted
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @param ns    a record from the authority section of a referral
+     * @param asked the zone of the server that sent it
+     * @param fqdn  the name that was asked for
+     * @return true if ns is an NS record for a zone strictly below asked that encloses fqdn;
+     * one for asked itself or above it makes a lame referral, which would only lead back
+     */
+    static boolean isDelegation(DNSlookup.Record ns, String asked, String fqdn) {
+        return ns.recordType.equals("NS") && isWithin(ns.recordName, asked)
+                && !ns.recordName.equalsIgnoreCase(asked) && isWithin(fqdn, ns.recordName);
+    }
+
+    /**
+     * @return true if name is zone or a name below it, every name being within the root ""
+     */
+    static boolean isWithin(String name, String zone) {
+        if (zone.isEmpty() || name.equalsIgnoreCase(zone)) return true;
+        int start = name.length() - zone.length();
+        return start > 0 && name.charAt(start - 1) == '.' && name.regionMatches(true, start, zone, 0, zone.length());
+    }
+
+    /**
+     * @return "b.c" for "a.b.c", "" for "c"
+     */
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private void store(String name, String type, List<DNSlookup.Record> records, int ttl, boolean negative) {
+        if (ttl <= 0) return;
+        String key = key(name, type);
+        Entry entry = new Entry(new ArrayList<DNSlookup.Record>(records),
+                System.nanoTime() + Math.min(ttl, MAX_TTL) * 1000000000L, negative);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * @return the unexpired entry, or null
+     */
+    private Entry entry(String name, String type) {
+        String key = key(name, type);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                segment.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static String key(String name, String type) {
+        return name.toLowerCase(Locale.ROOT) + "/" + type;
+    }
+
+    private static class Entry {
+        final List<DNSlookup.Record> records;
+        final long expiresAt; // System.nanoTime
+        final boolean negative;
+
+        Entry(List<DNSlookup.Record> records, long expiresAt, boolean negative) {
+            this.records = records;
+            this.expiresAt = expiresAt;
+            this.negative = negative;
+        }
+    }
+
+    /**
+     * A least recently used map of at most capacity entries
+     */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package exception;
+
+public class MalformedResponseException extends Exception {
+    // Exception raised when a response is truncated, or a name in it is not well formed
+
+    public MalformedResponseException(String message) {
+        super(message);
+    }
+}